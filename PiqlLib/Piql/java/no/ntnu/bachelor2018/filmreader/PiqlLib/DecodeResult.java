@@ -0,0 +1,229 @@
+package no.ntnu.bachelor2018.filmreader.PiqlLib;
+
+import java.io.Closeable;
+import java.util.Locale;
+
+/**
+ * The outcome of unboxing one frame: the result code of the unboxer, the error correction
+ * statistics, the metadata read from the frame and the time spent in each step.
+ * Failed frames get a result as well, showing where the time went and how close they came.
+ * Created by the native unboxer.
+ */
+public class DecodeResult implements Closeable {
+
+    // Result codes of the native unboxer
+    public static final int OK = 0;
+    public static final int METADATA_ERROR = 1;
+    public static final int BORDER_TRACKING_ERROR = 2;
+    public static final int DATA_DECODE_ERROR = 3;
+    public static final int CRC_MISMATCH_ERROR = 4;
+    public static final int CONFIG_ERROR = 5;
+    public static final int PROCESS_CALLBACK_ABORT = 6;
+    public static final int INPUT_DATA_ERROR = 7;
+
+    // Metadata items, in the order the native unboxer gives them
+    public static final int JOB_ID = 0;
+    public static final int FRAME_NUMBER = 1;
+    public static final int FILE_ID = 2;
+    public static final int FILE_SIZE = 3;
+    public static final int DATA_CRC = 4;
+    public static final int DATA_SIZE = 5;
+    public static final int SYMBOLS_PER_PIXEL = 6;
+    public static final int CONTENT_TYPE = 7;
+
+    private final int code;
+    private final String codeName;
+    private DecodedData data;               // Null if not decoded or taken
+
+    private final boolean hasStats;         // False if the unboxer stopped before decoding
+    private final int resolvedErrors;
+    private final int unresolvedErrors;
+    private final float fecAccumulatedAmount;
+    private final float fecAccumulatedWeight;
+
+    private final int metadataMask;         // Bit i is set if metadata item i was read
+    private final long[] metadata;          // The metadata items, unsigned
+    private final String contentType;       // Name of the content type, null if not read
+
+    private final long extractNanos;        // Tracking, sampling and quantizing the frame
+    private final String[] stepNames;       // Codec of each decoding step that was started
+    private final long[] stepNanos;         // Time of each decoding step
+
+    DecodeResult(int code, String codeName, long data, boolean hasStats, int resolvedErrors,
+                 int unresolvedErrors, float fecAccumulatedAmount, float fecAccumulatedWeight,
+                 int metadataMask, long[] metadata, String contentType, long extractNanos,
+                 String[] stepNames, long[] stepNanos) {
+        this.code = code;
+        this.codeName = codeName;
+        this.data = data != 0 ? new DecodedData(data) : null;
+        this.hasStats = hasStats;
+        this.resolvedErrors = resolvedErrors;
+        this.unresolvedErrors = unresolvedErrors;
+        this.fecAccumulatedAmount = fecAccumulatedAmount;
+        this.fecAccumulatedWeight = fecAccumulatedWeight;
+        this.metadataMask = metadataMask;
+        this.metadata = metadata;
+        this.contentType = contentType;
+        this.extractNanos = extractNanos;
+        this.stepNames = stepNames;
+        this.stepNanos = stepNanos;
+    }
+
+    /**
+     * @return The result code of the unboxer, e.g. {@link #OK}
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return Name of the result code, e.g. "CRC MISMATCH ERROR"
+     */
+    public String getCodeName() {
+        return codeName;
+    }
+
+    /**
+     * @return True if the frame was decoded
+     */
+    public boolean isDecoded() {
+        return code == OK;
+    }
+
+    /**
+     * Takes the decoded data, which is then no longer freed by {@link #close()}.
+     *
+     * @return The data, null if the frame was not decoded or the data is already taken.
+     * Must be closed once read
+     */
+    public synchronized DecodedData takeData() {
+        DecodedData taken = data;
+        data = null;
+        return taken;
+    }
+
+    /**
+     * @return True if the error correction statistics are set, false if the unboxer stopped before decoding
+     */
+    public boolean hasStats() {
+        return hasStats;
+    }
+
+    public int getResolvedErrors() {
+        return resolvedErrors;
+    }
+
+    public int getUnresolvedErrors() {
+        return unresolvedErrors;
+    }
+
+    public float getFecAccumulatedAmount() {
+        return fecAccumulatedAmount;
+    }
+
+    public float getFecAccumulatedWeight() {
+        return fecAccumulatedWeight;
+    }
+
+    /**
+     * @param item The metadata item, e.g. {@link #FRAME_NUMBER}
+     * @return True if the item was read from the frame
+     */
+    public boolean hasMetadata(int item) {
+        return item >= 0 && item < metadata.length && (metadataMask & (1 << item)) != 0;
+    }
+
+    /**
+     * @param item The metadata item, e.g. {@link #FILE_SIZE}
+     * @return The unsigned value of the item, 0 if it was not read
+     */
+    public long getMetadata(int item) {
+        return hasMetadata(item) ? metadata[item] : 0;
+    }
+
+    /**
+     * @return Name of the content type, e.g. "DATA", or null if it was not read
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return Nanoseconds spent tracking, sampling and quantizing the frame before decoding
+     */
+    public long getExtractNanos() {
+        return extractNanos;
+    }
+
+    /**
+     * @return Number of decoding steps started, each step runs one codec
+     */
+    public int getStepCount() {
+        return stepNanos.length;
+    }
+
+    /**
+     * @return Name of the codec of a decoding step
+     */
+    public String getStepName(int step) {
+        return stepNames[step];
+    }
+
+    /**
+     * @return Nanoseconds spent in a decoding step
+     */
+    public long getStepNanos(int step) {
+        return stepNanos[step];
+    }
+
+    /**
+     * @return Nanoseconds spent in all decoding steps
+     */
+    public long getDecodeNanos() {
+        long total = 0;
+        for (long nanos : stepNanos) {
+            total += nanos;
+        }
+        return total;
+    }
+
+    /**
+     * Frees the decoded data, unless it is taken.
+     */
+    @Override
+    public void close() {
+        DecodedData taken = takeData();
+        if (taken != null) {
+            taken.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(codeName);
+        builder.append(String.format(Locale.US, ", extract %.1f ms", extractNanos / 1e6));
+        for (int i = 0; i < stepNanos.length; i++) {
+            builder.append(String.format(Locale.US, ", %s %.1f ms", stepNames[i], stepNanos[i] / 1e6));
+        }
+        if (hasStats) {
+            builder.append(String.format(Locale.US, ", errors %d resolved %d unresolved, FEC %.2f/%.2f",
+                    resolvedErrors, unresolvedErrors, fecAccumulatedAmount, fecAccumulatedWeight));
+        }
+        if (hasMetadata(FRAME_NUMBER)) {
+            builder.append(", frame ").append(getMetadata(FRAME_NUMBER));
+        }
+        if (hasMetadata(FILE_ID)) {
+            builder.append(", file ").append(getMetadata(FILE_ID));
+        }
+        if (hasMetadata(FILE_SIZE)) {
+            builder.append(", size ").append(getMetadata(FILE_SIZE));
+        }
+        if (hasMetadata(DATA_CRC)) {
+            builder.append(", CRC ").append(Long.toHexString(getMetadata(DATA_CRC)));
+        }
+        if (contentType != null) {
+            builder.append(", ").append(contentType);
+        }
+        return builder.toString();
+    }
+}
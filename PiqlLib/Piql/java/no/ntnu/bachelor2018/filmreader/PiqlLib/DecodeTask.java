@@ -0,0 +1,102 @@
+package no.ntnu.bachelor2018.filmreader.PiqlLib;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An unbox that runs on the thread calling {@link #run()}, or on any executor, and can be
+ * cancelled from any other thread. Cancelling sets a flag read by the native unboxer, which
+ * then aborts at its next check: after the metadata, after sampling the data or before a codec step.
+ * A cancelled task is done at once, while the native unboxer may still read the image until its
+ * next check. The image may therefore only be released once {@link #awaitFinished()} returns,
+ * not when {@link #isDone()} or {@link #get()} do. The result of a cancelled task is closed,
+ * otherwise the result from {@link #get()} must be closed by whoever gets it.
+ */
+public class DecodeTask extends FutureTask<DecodeResult> {
+
+    private final ByteBuffer cancelFlag;    // One byte read by the native unboxer, non zero once cancelled
+    private final CountDownLatch finished = new CountDownLatch(1);  // Counted down when run() returns
+    private final AtomicBoolean started = new AtomicBoolean();      // Set when run() is first called
+
+    DecodeTask(Callable<DecodeResult> unbox, ByteBuffer cancelFlag) {
+        super(unbox);
+        this.cancelFlag = cancelFlag;
+    }
+
+    /**
+     * @return A flag for a new task, read directly by the native unboxer
+     */
+    static ByteBuffer createFlag() {
+        return ByteBuffer.allocateDirect(1);
+    }
+
+    /**
+     * @return True if the flag of a task is set
+     */
+    static boolean isSet(ByteBuffer cancelFlag) {
+        return cancelFlag != null && cancelFlag.get(0) != 0;
+    }
+
+    /**
+     * Unboxes, unless the task is cancelled or already run.
+     */
+    @Override
+    public void run() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            super.run();
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Waits until the native unboxer no longer reads the image. Returns at once if the task has not
+     * started, so it must be cancelled first if it may still be run by another thread.
+     *
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void awaitFinished() throws InterruptedException {
+        if (started.get()) {
+            finished.await();
+        }
+    }
+
+    /**
+     * Waits like {@link #awaitFinished()}, at most for the given time.
+     *
+     * @return True if the unboxer no longer reads the image, false if the time ran out
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return !started.get() || finished.await(timeout, unit);
+    }
+
+    /**
+     * Cancels the task, a running unbox is aborted by the native unboxer. Interrupting is not
+     * needed to stop the unbox.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            cancelFlag.put(0, (byte) 1);
+        }
+        return cancelled;
+    }
+
+    @Override
+    protected void set(DecodeResult result) {
+        super.set(result);
+        // Nobody gets the result of a task cancelled while it finished
+        if (result != null && isCancelled()) {
+            result.close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package no.ntnu.bachelor2018.filmreader.PiqlLib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The data decoded from a frame, left in the native memory the unboxer decoded it into.
+ * The data is read through {@link #getBuffer()} or {@link #openStream()}, and must be
+ * freed with {@link #close()} once read.
+ */
+public class DecodedData implements Closeable {
+
+    private long handle;            // Native vector with the data, 0 once freed
+    private ByteBuffer buffer;      // Direct buffer over the native data, null once freed
+
+    DecodedData(long handle) {
+        this.handle = handle;
+        int size = (int) size(handle);
+        buffer = size > 0 ? buffer(handle) : ByteBuffer.allocateDirect(0);
+    }
+
+    /**
+     * @return Number of bytes decoded
+     */
+    public synchronized int size() {
+        return buffer != null ? buffer.capacity() : 0;
+    }
+
+    /**
+     * Gets the data without copying it. The buffer must not be used after {@link #close()}.
+     *
+     * @return Read only buffer over the data
+     * @throws IllegalStateException if the data is freed
+     */
+    public synchronized ByteBuffer getBuffer() {
+        checkOpen();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Opens a stream reading the data without copying it. The stream fails once the data is freed.
+     *
+     * @return Stream over the data
+     * @throws IllegalStateException if the data is freed
+     */
+    public synchronized InputStream openStream() {
+        checkOpen();
+        return new DataStream(buffer.duplicate());
+    }
+
+    /**
+     * Frees the native data. Buffers from {@link #getBuffer()} are invalid afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        if (handle != 0) {
+            release(handle);
+            handle = 0;
+            buffer = null;
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            close();
+        } finally {
+            super.finalize();
+        }
+    }
+
+    private void checkOpen() {
+        if (buffer == null) {
+            throw new IllegalStateException("Decoded data is freed");
+        }
+    }
+
+    /**
+     * Reads the data as long as it is not freed.
+     */
+    private class DataStream extends InputStream {
+        private final ByteBuffer data;
+
+        DataStream(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() throws IOException {
+            synchronized (DecodedData.this) {
+                checkStream();
+                return data.hasRemaining() ? data.get() & 0xFF : -1;
+            }
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            synchronized (DecodedData.this) {
+                checkStream();
+                if (length == 0) {
+                    return 0;
+                }
+                if (!data.hasRemaining()) {
+                    return -1;
+                }
+                int count = Math.min(length, data.remaining());
+                data.get(bytes, offset, count);
+                return count;
+            }
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            synchronized (DecodedData.this) {
+                checkStream();
+                int skipped = (int) Math.max(0, Math.min(count, data.remaining()));
+                data.position(data.position() + skipped);
+                return skipped;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized (DecodedData.this) {
+                checkStream();
+                return data.remaining();
+            }
+        }
+
+        private void checkStream() throws IOException {
+            if (buffer == null) {
+                throw new IOException("Decoded data is freed");
+            }
+        }
+    }
+
+    private static native long size(long handle);
+
+    private static native ByteBuffer buffer(long handle);
+
+    private static native void release(long handle);
+}
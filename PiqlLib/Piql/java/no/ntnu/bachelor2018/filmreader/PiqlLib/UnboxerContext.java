@@ -0,0 +1,254 @@
+package no.ntnu.bachelor2018.filmreader.PiqlLib;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Native unboxer for one frame format. Creating the unboxer parses the format and builds the
+ * codecs, so it is created once per format and reused for every frame, only reset between frames.
+ * The unboxer is not reentrant, frames given to the same context are unboxed one at a time.
+ */
+public class UnboxerContext implements Closeable {
+
+    private static final String TAG = "UnboxerContext";
+    // The format of the film read by the app
+    public static final String DEFAULT_FORMAT = "4k-stud-PAM2-360x360";
+    private static final Map<String, UnboxerContext> contexts = new HashMap<>();
+
+    private final String format;
+    private long handle;        // Native unboxer, 0 once freed
+    private boolean busy;       // A frame is being unboxed
+    private boolean closed;     // Freed when the frame being unboxed is done
+
+    private UnboxerContext(String format, long handle) {
+        this.format = format;
+        this.handle = handle;
+    }
+
+    /**
+     * Gets the context of a format, created on first use.
+     *
+     * @param format Name of the frame format, e.g. {@link #DEFAULT_FORMAT}
+     * @return The context of the format
+     * @throws IllegalArgumentException if the format is unknown or the unboxer could not be allocated
+     */
+    public static synchronized UnboxerContext get(String format) {
+        UnboxerContext context = contexts.get(format);
+        if (context == null || context.isClosed()) {
+            long handle = create(format);
+            if (handle == 0) {
+                throw new IllegalArgumentException("Could not create unboxer for " + format
+                        + ", the format is unknown or out of memory");
+            }
+            context = new UnboxerContext(format, handle);
+            contexts.put(format, context);
+            Log.d(TAG, "Created unboxer for " + format);
+        }
+        return context;
+    }
+
+    /**
+     * Closes the contexts of all formats. They are created again on next use.
+     */
+    public static synchronized void closeAll() {
+        for (UnboxerContext context : contexts.values()) {
+            context.close();
+        }
+        contexts.clear();
+    }
+
+    /**
+     * Unboxes an 8 bit image read in place from native memory. The unboxer may sharpen the image in place.
+     *
+     * @param address Address of the image, e.g. from Mat.dataAddr(). Must stay valid during the call
+     * @param width   Width of the image in pixels
+     * @param height  Height of the image in pixels
+     * @param stride  Bytes between the start of two rows. Rows are only copied if they are padded
+     * @return The result of the unboxer, holding the decoded data if the image was unboxed.
+     * Null if the context is closed
+     */
+    public DecodeResult unbox(long address, int width, int height, int stride) {
+        return unbox(address, width, height, stride, null);
+    }
+
+    /**
+     * Unboxes an 8 bit image read in place from a direct buffer, see {@link #unbox(long, int, int, int)}
+     *
+     * @param image Direct buffer with the image
+     * @return The result of the unboxer, an {@link DecodeResult#INPUT_DATA_ERROR} if the buffer is
+     * not direct or too small. Null if the context is closed
+     */
+    public DecodeResult unbox(ByteBuffer image, int width, int height, int stride) {
+        return unbox(image, width, height, stride, null);
+    }
+
+    /**
+     * Unboxes an 8 bit image without row padding.
+     *
+     * @return The result of the unboxer, null if the context is closed
+     */
+    public DecodeResult unbox(int width, int height, byte[] image) {
+        if (!begin()) {
+            return null;
+        }
+        try {
+            return unboxArray(handle, width, height, image, null);
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Creates a task unboxing an 8 bit image read in place from native memory, see {@link #unbox(long, int, int, int)}.
+     * The task is not started, it unboxes on the thread running it. The image must stay valid until
+     * {@link DecodeTask#awaitFinished()} returns, which is later than done for a cancelled task.
+     *
+     * @return The task, giving the result of the unboxer or null if the context is closed or the task cancelled
+     */
+    public DecodeTask task(final long address, final int width, final int height, final int stride) {
+        final ByteBuffer cancelFlag = DecodeTask.createFlag();
+        return new DecodeTask(new Callable<DecodeResult>() {
+            @Override
+            public DecodeResult call() {
+                return unbox(address, width, height, stride, cancelFlag);
+            }
+        }, cancelFlag);
+    }
+
+    /**
+     * Creates a task unboxing an 8 bit image read in place from a direct buffer, see {@link #task(long, int, int, int)}
+     */
+    public DecodeTask task(final ByteBuffer image, final int width, final int height, final int stride) {
+        final ByteBuffer cancelFlag = DecodeTask.createFlag();
+        return new DecodeTask(new Callable<DecodeResult>() {
+            @Override
+            public DecodeResult call() {
+                return unbox(image, width, height, stride, cancelFlag);
+            }
+        }, cancelFlag);
+    }
+
+    /**
+     * Resets the unboxer. Done before every frame, so only needed to drop state between frames early.
+     */
+    public void reset() {
+        if (!begin()) {
+            return;
+        }
+        try {
+            reset(handle);
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Frees the native unboxer. If a frame is being unboxed, it is freed when the frame is done,
+     * so closing never waits for a decode.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!busy) {
+            free();
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Waits for the frame being unboxed by another thread.
+     *
+     * @return true if the unboxer may be used, false if the context is closed
+     */
+    private synchronized boolean begin() {
+        while (busy && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (closed) {
+            return false;
+        }
+        busy = true;
+        return true;
+    }
+
+    private synchronized void end() {
+        busy = false;
+        if (closed) {
+            free();
+        }
+        notifyAll();
+    }
+
+    /**
+     * @param cancelFlag Flag aborting the unbox once set, null if it can not be cancelled
+     */
+    private DecodeResult unbox(long address, int width, int height, int stride, ByteBuffer cancelFlag) {
+        if (!begin()) {
+            return null;
+        }
+        try {
+            // Cancelled while waiting for the frame before
+            if (DecodeTask.isSet(cancelFlag)) {
+                return null;
+            }
+            return unboxAddress(handle, address, width, height, stride, cancelFlag);
+        } finally {
+            end();
+        }
+    }
+
+    private DecodeResult unbox(ByteBuffer image, int width, int height, int stride, ByteBuffer cancelFlag) {
+        if (!begin()) {
+            return null;
+        }
+        try {
+            if (DecodeTask.isSet(cancelFlag)) {
+                return null;
+            }
+            return unboxBuffer(handle, image, width, height, stride, cancelFlag);
+        } finally {
+            end();
+        }
+    }
+
+    private void free() {
+        if (handle != 0) {
+            free(handle);
+            handle = 0;
+            Log.d(TAG, "Freed unboxer for " + format);
+        }
+    }
+
+    // Returns 0 if the format is unknown or out of memory, get() turns that into an exception
+    private static native long create(String format);
+
+    private static native void reset(long handle);
+
+    private static native void free(long handle);
+
+    // The unboxer aborts once the direct one byte cancel buffer is set, if there is one.
+    // Null is only returned if Java is out of memory
+    private static native DecodeResult unboxArray(long handle, int width, int height, byte[] image, ByteBuffer cancel);
+
+    private static native DecodeResult unboxAddress(long handle, long address, int width, int height, int stride,
+                                                    ByteBuffer cancel);
+
+    private static native DecodeResult unboxBuffer(long handle, ByteBuffer image, int width, int height, int stride,
+                                                   ByteBuffer cancel);
+}
@@ -2,6 +2,7 @@ package no.ntnu.bachelor2018.filmreader.PiqlLib;
 
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
 
 import static android.content.ContentValues.TAG;
@@ -12,10 +13,67 @@ import static android.content.ContentValues.TAG;
 
 public class Wrapper {
     public Wrapper(){}
-    public static boolean getFileFromImage(int width, int height, byte[] image){
+    /**
+     * Unboxes an 8 bit image without row padding.
+     *
+     * @return The result of the unboxer, holding the decoded data if the image was unboxed. Must be closed
+     */
+    public static DecodeResult unboxImage(int width, int height, byte[] image){
 
         Log.d(TAG, "Processing");
-        return process(width,height,image);
+        return UnboxerContext.get(UnboxerContext.DEFAULT_FORMAT).unbox(width, height, image);
     }
-    private static native boolean process(int width, int height, byte[] image);
+
+    /**
+     * Unboxes an 8 bit image read in place from native memory, without copying it into Java.
+     * The unboxer may sharpen the image in place.
+     *
+     * @param width   Width of the image in pixels
+     * @param height  Height of the image in pixels
+     * @param address Address of the image, e.g. from Mat.dataAddr(). Must stay valid during the call
+     * @param stride  Bytes between the start of two rows. Rows are only copied if they are padded
+     * @return The result of the unboxer, holding the decoded data if the image was unboxed. Must be closed
+     */
+    public static DecodeResult unboxImage(int width, int height, long address, int stride) {
+        Log.d(TAG, "Processing");
+        return UnboxerContext.get(UnboxerContext.DEFAULT_FORMAT).unbox(address, width, height, stride);
+    }
+
+    /**
+     * Unboxes an 8 bit image read in place from a direct buffer, see {@link #unboxImage(int, int, long, int)}
+     *
+     * @param image  Direct buffer with the image
+     * @param stride Bytes between the start of two rows
+     * @return The result of the unboxer, an input data error if the buffer is not direct or too small
+     */
+    public static DecodeResult unboxImage(int width, int height, ByteBuffer image, int stride) {
+        Log.d(TAG, "Processing");
+        return UnboxerContext.get(UnboxerContext.DEFAULT_FORMAT).unbox(image, width, height, stride);
+    }
+
+    /**
+     * Creates a cancellable unbox of an 8 bit image read in place from native memory,
+     * see {@link #unboxImage(int, int, long, int)}. The task is not started, it unboxes
+     * on the thread or executor running it, and the image must stay valid until
+     * {@link DecodeTask#awaitFinished()} returns.
+     *
+     * @return The task, giving the result of the unboxer
+     */
+    public static DecodeTask createDecodeTask(int width, int height, long address, int stride) {
+        return UnboxerContext.get(UnboxerContext.DEFAULT_FORMAT).task(address, width, height, stride);
+    }
+
+    /**
+     * Copies an 8 bit image plane into native image memory with one copy, skipping row padding.
+     *
+     * @param plane     Direct buffer with the plane data, e.g. from {@link android.media.Image.Plane}
+     * @param rowStride Bytes between the start of two rows in the plane
+     * @param width     Width of the image in pixels
+     * @param height    Height of the image in pixels
+     * @param dstAddr   Address of the destination memory, e.g. from Mat.dataAddr()
+     * @param dstStride Bytes between the start of two rows in the destination
+     * @return true if the plane was copied, false if the input was invalid
+     */
+    public static native boolean copyPlane(ByteBuffer plane, int rowStride, int width, int height,
+                                           long dstAddr, int dstStride);
 }
@@ -150,6 +150,46 @@ boxing_image8 * boxing_image8_create2(boxing_image8_pixel * buffer, unsigned int
 }
 
 
+//----------------------------------------------------------------------------
+/*!
+ *  \brief Create an image that borrows existing data.
+ *
+ *  Create an image with specified width and height over an existing buffer,
+ *  without copying it. The image has is_owning_data set to false, so the buffer
+ *  is not freed with the image and must outlive it.
+ *  The buffer must hold width * height pixels without row padding.
+ *  If width or height equal to zero or buffer is NULL, image does not create and function return NULL.
+ *
+ *  \ingroup image
+ *  \param[in]  buffer    The pointer to the image data.
+ *  \param[in]  width     The width of the image that is created.
+ *  \param[in]  height    The height of the image that is created.
+ *  \return created image over the buffer.
+ */
+
+boxing_image8 * boxing_image8_create_borrowed(boxing_image8_pixel * buffer, unsigned int width, unsigned int height)
+{
+    if (width == 0 || height == 0 || buffer == NULL)
+    {
+        DLOG_ERROR("failed to create image with null size or data!");
+        return NULL;
+    }
+
+    boxing_image8 * image = BOXING_MEMORY_ALLOCATE_TYPE(boxing_image8);
+    if (image == NULL)
+    {
+        DLOG_ERROR( "failed to allocate image!" );
+        return NULL;
+    }
+
+    image->width = width;
+    image->height = height;
+    image->data = buffer;
+    image->is_owning_data = DFALSE;
+    return image;
+}
+
+
 //----------------------------------------------------------------------------
 /*!
  *  \brief Initialize an existing image with new width and height.
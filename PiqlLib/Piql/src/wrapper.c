@@ -3,6 +3,8 @@
 //Used to interface with java.
 //
 #include <stdlib.h>
+#include <stdint.h>
+#include <time.h>
 #include <jni.h>
 #include <Piql/inc/boxing/metadata.h>
 #include <Piql/inc/boxing/unboxer.h>
@@ -27,7 +29,8 @@ static const char * result_names[] = { "OK",
                                        "DATA DECODE ERROR",
                                        "CRC MISMATCH ERROR",
                                        "CONFIG ERROR",
-                                       "PROCESS CALLBACK ABORT" };
+                                       "PROCESS CALLBACK ABORT",
+                                       "INPUT DATA ERROR" };
 
 static const char * content_types[] = { "UNKNOWN",
                                         "TOC",
@@ -35,10 +38,95 @@ static const char * content_types[] = { "UNKNOWN",
                                         "VISUAL",
                                         "CONTROL FRAME" };
 
+#define ARRAY_LENGTH(array) (sizeof(array) / sizeof((array)[0]))
+// Decoding steps timed, the formats have a handful of codecs
+#define MAX_DECODE_STEPS 32
+// Metadata items given to Java, from BOXING_METADATA_TYPE_JOBID to BOXING_METADATA_TYPE_CONTENTTYPE
+#define METADATA_ITEMS 8
+
+static const char * result_name(int result)
+{
+    return result >= 0 && result < (int)ARRAY_LENGTH(result_names) ? result_names[result] : "UNKNOWN";
+}
+
+static const char * content_type_name(int type)
+{
+    return type >= 0 && type < (int)ARRAY_LENGTH(content_types) ? content_types[type] : content_types[0];
+}
+
+/*
+ * Monotonic time in nanoseconds, for timing the unboxing steps.
+ */
+static int64_t now_nanos()
+{
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t)now.tv_sec * 1000000000 + now.tv_nsec;
+}
+
+/*
+ * State of one unbox call, given to the unboxer callbacks as user data.
+ */
+typedef struct unbox_job_s
+{
+    volatile const jbyte * cancelled;   // Set to non zero by Java to abort, NULL if the call can not be cancelled
+    int64_t                start;       // Time the unbox call started
+    int64_t                extract_nanos;   // Time until the first decoding step, -1 before it started
+    int                    step;        // Decoding step running, -1 if none
+    int                    steps;       // Decoding steps started
+    int64_t                step_start;  // Time the running step started
+    int64_t                step_nanos[MAX_DECODE_STEPS];
+    DBOOL                  has_stats;   // The stats are set once decoding completes or fails
+    boxing_stats_decode    stats;
+} unbox_job;
+
+static void init_job(unbox_job * job, volatile const jbyte * cancelled)
+{
+    boxing_memory_clear(job, sizeof(unbox_job));
+    job->cancelled = cancelled;
+    job->start = now_nanos();
+    job->extract_nanos = -1;
+    job->step = -1;
+    job->has_stats = DFALSE;
+}
+
+/*
+ * Ends the timing of the running decoding step.
+ */
+static void finish_step(unbox_job * job, int64_t now)
+{
+    if (job->step >= 0 && job->step < MAX_DECODE_STEPS)
+    {
+        job->step_nanos[job->step] = now - job->step_start;
+    }
+    job->step = -1;
+}
+
+/*
+ * Returns BOXING_PROCESS_CALLBACK_ABORT once the unbox call is cancelled, which makes the
+ * unboxer stop at the callback instead of finishing the frame.
+ */
+static int check_cancelled(void * user)
+{
+    unbox_job * job = (unbox_job *)user;
+    if (job != NULL && job->cancelled != NULL && *job->cancelled != 0)
+    {
+        boxing_log(1, "Unboxing cancelled");
+        return BOXING_PROCESS_CALLBACK_ABORT;
+    }
+    return BOXING_PROCESS_CALLBACK_OK;
+}
+
 
 static int unboxing_complete_callback(void * user, int* res, boxing_stats_decode * stats)
 {
-    BOXING_UNUSED_PARAMETER(user);
+    unbox_job * job = (unbox_job *)user;
+    if (job != NULL)
+    {
+        finish_step(job, now_nanos());
+        job->stats = *stats;
+        job->has_stats = DTRUE;
+    }
 
     if (*res == BOXING_UNBOXER_OK)
     {
@@ -51,7 +139,7 @@ static int unboxing_complete_callback(void * user, int* res, boxing_stats_decode
     }
     else
     {
-        boxing_log(1,"Failed wrapper:unboxing_complete_callback");
+        boxing_log_args(1,"Failed wrapper:unboxing_complete_callback: %s\n", result_name(*res));
     }
 
     return 0;
@@ -109,7 +197,7 @@ static int metadata_complete_callback(void * user, int* res, boxing_metadata_lis
                     boxing_log_args(1,"Symbols per pixel: %d\n", ((boxing_metadata_item_symbols_per_pixel*)item)->value);
                     break;
                 case BOXING_METADATA_TYPE_CONTENTTYPE:
-                    boxing_log_args(1,"Content type: %s\n", content_types[((boxing_metadata_item_content_type*)item)->value]);
+                    boxing_log_args(1,"Content type: %s\n", content_type_name(((boxing_metadata_item_content_type*)item)->value));
                     break;
                 case BOXING_METADATA_TYPE_CIPHERKEY:
                     boxing_log_args(1,"Cipher key: %d\n", ((boxing_metadata_item_cipher_key*)item)->value);
@@ -122,38 +210,413 @@ static int metadata_complete_callback(void * user, int* res, boxing_metadata_lis
             }
         }
     }
-    return 0;
+    // Checked once the frame is tracked and the metadata decoded
+    return check_cancelled(user);
 }
 
-JNIEXPORT jboolean JNICALL
-Java_no_ntnu_bachelor2018_filmreader_PiqlLib_Wrapper_process(JNIEnv *env, jclass type, jint width,
-                                                             jint height, jbyteArray image_) {
-    jbyte *image = (*env)->GetByteArrayElements(env, image_, NULL);
+/*
+ * Checked once the data container is sampled, before it is quantized.
+ */
+static int content_sampled_callback(void * user, int* res, boxing_image8 * image, void * sampler_list)
+{
+    BOXING_UNUSED_PARAMETER(res);
+    BOXING_UNUSED_PARAMETER(image);
+    BOXING_UNUSED_PARAMETER(sampler_list);
+
+    return check_cancelled(user);
+}
+
+/*
+ * Called before every codec step, where most of the decoding time is spent. A step is timed
+ * until the next step starts, or until decoding completes or fails.
+ */
+static int decode_step_callback(void * user, int* res, void * data, int data_size, int step,
+                                int is_codec_errorcorrecting, int parity_size, int block_size)
+{
+    BOXING_UNUSED_PARAMETER(res);
+    BOXING_UNUSED_PARAMETER(data);
+    BOXING_UNUSED_PARAMETER(data_size);
+    BOXING_UNUSED_PARAMETER(is_codec_errorcorrecting);
+    BOXING_UNUSED_PARAMETER(parity_size);
+    BOXING_UNUSED_PARAMETER(block_size);
+
+    unbox_job * job = (unbox_job *)user;
+    if (job != NULL)
+    {
+        int64_t now = now_nanos();
+        if (job->extract_nanos < 0)
+        {
+            job->extract_nanos = now - job->start;
+        }
+        finish_step(job, now);
+        job->step = step;
+        job->step_start = now;
+        if (step >= job->steps)
+        {
+            job->steps = step < MAX_DECODE_STEPS ? step + 1 : MAX_DECODE_STEPS;
+        }
+    }
+
+    return check_cancelled(user);
+}
+
+/*
+ * Reads a metadata item as an unsigned value.
+ * Returns DFALSE if the item was not decoded.
+ */
+static DBOOL metadata_value(boxing_metadata_list * metadata, boxing_metadata_type type, jlong * value)
+{
+    boxing_metadata_item * item = metadata != NULL ? boxing_metadata_list_find_item(metadata, type) : NULL;
+    if (item == NULL)
+    {
+        return DFALSE;
+    }
+    switch (type)
+    {
+        case BOXING_METADATA_TYPE_FILESIZE:
+        case BOXING_METADATA_TYPE_DATACRC:
+            *value = (jlong)((boxing_metadata_item_u64 *)item)->value;
+            break;
+        case BOXING_METADATA_TYPE_SYMBOLSPERPIXEL:
+        case BOXING_METADATA_TYPE_CONTENTTYPE:
+            *value = ((boxing_metadata_item_u16 *)item)->value;
+            break;
+        default:
+            *value = ((boxing_metadata_item_u32 *)item)->value;
+            break;
+    }
+    return DTRUE;
+}
+
+/*
+ * Creates the DecodeResult of an unbox call. The result owns the data vector, which is
+ * freed here if the result can not be created.
+ * Returns NULL with a pending Java exception if out of memory.
+ */
+static jobject create_result(JNIEnv *env, const boxing_unboxer * unboxer, int result, gvector * data,
+                             boxing_metadata_list * metadata, unbox_job * job)
+{
+    int64_t now = now_nanos();
+    finish_step(job, now);
+    if (job->extract_nanos < 0)
+    {
+        job->extract_nanos = now - job->start;
+    }
+
+    // Metadata items are given in the order of their types, starting with the job id
+    jlong values[METADATA_ITEMS];
+    jint mask = 0;
+    jstring content_type = NULL;
+    for (int i = 0; i < METADATA_ITEMS; i++)
+    {
+        values[i] = 0;
+        if (metadata_value(metadata, (boxing_metadata_type)(BOXING_METADATA_TYPE_JOBID + i), &values[i]))
+        {
+            mask |= 1 << i;
+        }
+    }
+    if (mask & (1 << (BOXING_METADATA_TYPE_CONTENTTYPE - BOXING_METADATA_TYPE_JOBID)))
+    {
+        content_type = (*env)->NewStringUTF(env, content_type_name((int)values[BOXING_METADATA_TYPE_CONTENTTYPE - BOXING_METADATA_TYPE_JOBID]));
+    }
+
+    int steps = unboxer != NULL ? job->steps : 0;
+    jclass string_class = (*env)->FindClass(env, "java/lang/String");
+    jobjectArray step_names = string_class != NULL ? (*env)->NewObjectArray(env, steps, string_class, NULL) : NULL;
+    jlongArray step_nanos = (*env)->NewLongArray(env, steps);
+    jlongArray metadata_values = (*env)->NewLongArray(env, METADATA_ITEMS);
+    jclass result_class = (*env)->FindClass(env, "no/ntnu/bachelor2018/filmreader/PiqlLib/DecodeResult");
+    jmethodID constructor = result_class != NULL ? (*env)->GetMethodID(env, result_class, "<init>",
+            "(ILjava/lang/String;JZIIFFI[JLjava/lang/String;J[Ljava/lang/String;[J)V") : NULL;
+    jstring code_name = (*env)->NewStringUTF(env, result_name(result));
+    if (step_names == NULL || step_nanos == NULL || metadata_values == NULL || constructor == NULL || code_name == NULL)
+    {
+        gvector_free(data);
+        return NULL;
+    }
 
+    for (int i = 0; i < steps; i++)
+    {
+        boxing_codec_info info = { NULL, 0 };
+        boxing_unboxer_codec_info(unboxer, i, &info);
+        jstring name = (*env)->NewStringUTF(env, info.name != NULL ? info.name : "Unknown");
+        (*env)->SetObjectArrayElement(env, step_names, i, name);
+        (*env)->DeleteLocalRef(env, name);
+    }
+    (*env)->SetLongArrayRegion(env, step_nanos, 0, steps, (const jlong *)job->step_nanos);
+    (*env)->SetLongArrayRegion(env, metadata_values, 0, METADATA_ITEMS, values);
+
+    jobject decode_result = (*env)->NewObject(env, result_class, constructor, (jint)result, code_name,
+            (jlong)(intptr_t)data, (jboolean)(job->has_stats ? JNI_TRUE : JNI_FALSE),
+            (jint)job->stats.resolved_errors, (jint)job->stats.unresolved_errors,
+            (jfloat)job->stats.fec_accumulated_amount, (jfloat)job->stats.fec_accumulated_weight,
+            mask, metadata_values, content_type, (jlong)job->extract_nanos, step_names, step_nanos);
+    if (decode_result == NULL)
+    {
+        gvector_free(data);
+    }
+    return decode_result;
+}
+
+/*
+ * Unboxes an image with a long lived unboxer. The unboxer is reset first, so nothing is left
+ * from the previous attempt. The unboxer is called directly instead of through the utility,
+ * so the callbacks get the job as user data and the metadata is kept for the result.
+ * Returns the DecodeResult, holding the vector with the decoded data if the image was unboxed.
+ */
+static jobject unbox_image(JNIEnv *env, boxing_unboxer_utility * util, boxing_image8 * input_image, unbox_job * job) {
     gvector* output_data = gvector_create(1, 0);
-    boxing_image8* input_image = boxing_image8_create((unsigned int)width, (unsigned int)height);
+    boxing_metadata_list * metadata = boxing_metadata_list_create();
+    if (output_data == NULL || metadata == NULL) {
+        gvector_free(output_data);
+        if (metadata != NULL) {
+            boxing_metadata_list_free(metadata);
+        }
+        return create_result(env, NULL, BOXING_UNBOXER_INPUT_DATA_ERROR, NULL, NULL, job);
+    }
 
-    boxing_memory_copy(input_image ->data,image,(unsigned int)width*height);
+    boxing_unboxer_reset(util->unboxer);
+    int extract_result;
+    int process_result = boxing_unboxer_unbox(output_data, metadata, input_image, util->unboxer, &extract_result, job);
+    if (process_result != BOXING_UNBOXER_OK) {
+        gvector_free(output_data);
+        output_data = NULL;
+    }
+    jobject result = create_result(env, util->unboxer, process_result, output_data, metadata, job);
+    boxing_metadata_list_free(metadata);
+    return result;
+}
 
+/*
+ * Gets the cancel flag of an unbox call from a direct ByteBuffer, NULL if there is none.
+ */
+static volatile const jbyte * cancel_flag(JNIEnv *env, jobject cancel_) {
+    if (cancel_ == NULL || (*env)->GetDirectBufferCapacity(env, cancel_) < 1) {
+        return NULL;
+    }
+    return (volatile const jbyte *)(*env)->GetDirectBufferAddress(env, cancel_);
+}
 
-    //boxing_unboxer_utility * util =  boxing_unboxer_utility_create("4k-stud-PAM2-270x270",DFALSE,unboxing_complete_callback,metadata_complete_callback);
-    boxing_unboxer_utility * util =  boxing_unboxer_utility_create("4k-stud-PAM2-360x360",DFALSE,unboxing_complete_callback,metadata_complete_callback);
-    int process_result = boxing_unboxer_utility_unbox(util, input_image, output_data);
-    if(process_result == BOXING_UNBOXER_OK){
-        FILE * out_file = fopen("/data/data/filmreader.bacheloroppg.ntnu.no.filmreader/app_tardir/output.tar","w");
-        if(out_file != NULL){
-            fwrite(output_data->buffer,output_data ->item_size, output_data ->size,out_file);
-            fclose(out_file);
+/*
+ * Creates the unboxer of a format with the callbacks checking for cancellation.
+ * Same as boxing_unboxer_utility_create, which only sets the completion callbacks. The unboxer
+ * copies the callbacks when created, so they can not be added afterwards.
+ * Returns NULL if the format is unknown or out of memory, nothing is left allocated then.
+ */
+static boxing_unboxer_utility * create_unboxer(const char * format) {
+    boxing_unboxer_utility * util = BOXING_MEMORY_ALLOCATE_TYPE(boxing_unboxer_utility);
+    if (util == NULL) {
+        return NULL;
+    }
+    util->unboxer = NULL;
+    util->parameters = BOXING_MEMORY_ALLOCATE_TYPE(boxing_unboxer_parameters);
+    if (util->parameters == NULL) {
+        // boxing_unboxer_utility_free needs the parameters
+        boxing_memory_free(util);
+        return NULL;
+    }
+    boxing_unboxer_parameters_init(util->parameters);
 
+    if (boxing_unboxer_set_frame_format(util, format) == DFALSE || util->parameters->format == NULL) {
+        boxing_unboxer_utility_free(util);
+        return NULL;
+    }
+    util->parameters->is_raw = DFALSE;
+    util->parameters->on_all_complete = unboxing_complete_callback;
+    util->parameters->on_metadata_complete = metadata_complete_callback;
+    util->parameters->on_content_sampled = content_sampled_callback;
+    util->parameters->on_decode_step = decode_step_callback;
+
+    util->unboxer = boxing_unboxer_create(util->parameters);
+    return util;
+}
+
+/*
+ * Wraps image memory in a boxing_image8. Rows without padding are read in place,
+ * padded rows are copied into an image owning its data since boxing_image8 has no stride.
+ * Returns NULL if the input is invalid.
+ */
+static boxing_image8 * wrap_image(unsigned char * data, jint width, jint height, jint stride) {
+    if (data == NULL || width <= 0 || height <= 0 || stride < width) {
+        return NULL;
+    }
+    if (stride == width) {
+        return boxing_image8_create_borrowed(data, (unsigned int)width, (unsigned int)height);
+    }
+
+    boxing_image8 * image = boxing_image8_create((unsigned int)width, (unsigned int)height);
+    if (image != NULL) {
+        for (int y = 0; y < height; y++) {
+            boxing_memory_copy(image->data + (size_t)y * width, data + (size_t)y * stride, (size_t)width);
         }
+    }
+    return image;
+}
+
+/*
+ * Creates the unboxer for a format, e.g. "4k-stud-PAM2-360x360". Parsing the format and building
+ * the codecs is only done here, the unboxer is then reused for every frame.
+ * Returns 0 if the format is unknown.
+ */
+JNIEXPORT jlong JNICALL
+Java_no_ntnu_bachelor2018_filmreader_PiqlLib_UnboxerContext_create(JNIEnv *env, jclass type, jstring format_) {
+    const char *format = (*env)->GetStringUTFChars(env, format_, NULL);
+    if (format == NULL) {
+        return 0;
+    }
+    boxing_unboxer_utility * util = create_unboxer(format);
+    (*env)->ReleaseStringUTFChars(env, format_, format);
+
+    if (util != NULL && util->unboxer == NULL) {
+        boxing_log_args(1, "Failed to create unboxer\n");
+        boxing_unboxer_utility_free(util);
+        util = NULL;
+    }
+    return (jlong)(intptr_t)util;
+}
+
+JNIEXPORT void JNICALL
+Java_no_ntnu_bachelor2018_filmreader_PiqlLib_UnboxerContext_reset(JNIEnv *env, jclass type, jlong handle) {
+    boxing_unboxer_utility * util = (boxing_unboxer_utility *)(intptr_t)handle;
+    if (util != NULL) {
+        boxing_unboxer_reset(util->unboxer);
+    }
+}
+
+JNIEXPORT void JNICALL
+Java_no_ntnu_bachelor2018_filmreader_PiqlLib_UnboxerContext_free(JNIEnv *env, jclass type, jlong handle) {
+    boxing_unboxer_utility_free((boxing_unboxer_utility *)(intptr_t)handle);
+}
+
+JNIEXPORT jobject JNICALL
+Java_no_ntnu_bachelor2018_filmreader_PiqlLib_UnboxerContext_unboxArray(JNIEnv *env, jclass type, jlong handle,
+                                                                      jint width, jint height, jbyteArray image_,
+                                                                      jobject cancel_) {
+    boxing_unboxer_utility * util = (boxing_unboxer_utility *)(intptr_t)handle;
+    unbox_job job;
+    init_job(&job, cancel_flag(env, cancel_));
+    if (util == NULL || (*env)->GetArrayLength(env, image_) < (jlong)width * height) {
+        return create_result(env, NULL, BOXING_UNBOXER_INPUT_DATA_ERROR, NULL, NULL, &job);
+    }
+    jbyte *image = (*env)->GetByteArrayElements(env, image_, NULL);
+    if (image == NULL) {
+        // An OutOfMemoryError is pending, no more JNI calls may be made
+        return NULL;
+    }
+
+    boxing_image8* input_image = wrap_image((unsigned char *)image, width, height, width);
+    jobject result;
+    if (input_image != NULL) {
+        result = unbox_image(env, util, input_image, &job);
+        boxing_image8_free(input_image);
+    } else {
+        result = create_result(env, NULL, BOXING_UNBOXER_INPUT_DATA_ERROR, NULL, NULL, &job);
+    }
+
+    // The unboxer may have sharpened the image in place, do not copy it back
+    (*env)->ReleaseByteArrayElements(env, image_, image, JNI_ABORT);
+    return result;
+}
 
+/*
+ * Unboxes an image read in place from native memory, e.g. the data of a Mat.
+ */
+JNIEXPORT jobject JNICALL
+Java_no_ntnu_bachelor2018_filmreader_PiqlLib_UnboxerContext_unboxAddress(JNIEnv *env, jclass type, jlong handle,
+                                                                        jlong address, jint width, jint height,
+                                                                        jint stride, jobject cancel_) {
+    boxing_unboxer_utility * util = (boxing_unboxer_utility *)(intptr_t)handle;
+    unbox_job job;
+    init_job(&job, cancel_flag(env, cancel_));
+    boxing_image8* input_image = wrap_image((unsigned char *)(intptr_t)address, width, height, stride);
+    if (util == NULL || input_image == NULL) {
+        boxing_image8_free(input_image);
+        return create_result(env, NULL, BOXING_UNBOXER_INPUT_DATA_ERROR, NULL, NULL, &job);
     }
-    gvector_free(output_data);
+    jobject result = unbox_image(env, util, input_image, &job);
     boxing_image8_free(input_image);
-    boxing_unboxer_utility_free(util);
+    return result;
+}
 
-    (*env)->ReleaseByteArrayElements(env, image_, image, 0);
-    return (process_result == BOXING_UNBOXER_OK);
+/*
+ * Unboxes an image read in place from a direct ByteBuffer.
+ */
+JNIEXPORT jobject JNICALL
+Java_no_ntnu_bachelor2018_filmreader_PiqlLib_UnboxerContext_unboxBuffer(JNIEnv *env, jclass type, jlong handle,
+                                                                       jobject image_, jint width, jint height,
+                                                                       jint stride, jobject cancel_) {
+    boxing_unboxer_utility * util = (boxing_unboxer_utility *)(intptr_t)handle;
+    unbox_job job;
+    init_job(&job, cancel_flag(env, cancel_));
+    unsigned char *image = (unsigned char *)(*env)->GetDirectBufferAddress(env, image_);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, image_);
+
+    // The last row of a padded image does not have to include the padding
+    boxing_image8* input_image = NULL;
+    if (util != NULL && width > 0 && height > 0 && capacity >= (jlong)stride * (height - 1) + width) {
+        input_image = wrap_image(image, width, height, stride);
+    }
+    if (input_image == NULL) {
+        return create_result(env, NULL, BOXING_UNBOXER_INPUT_DATA_ERROR, NULL, NULL, &job);
+    }
+    jobject result = unbox_image(env, util, input_image, &job);
+    boxing_image8_free(input_image);
+    return result;
+}
+
+/*
+ * Number of bytes in the vector of a DecodedData.
+ */
+JNIEXPORT jlong JNICALL
+Java_no_ntnu_bachelor2018_filmreader_PiqlLib_DecodedData_size(JNIEnv *env, jclass type, jlong handle) {
+    gvector * data = (gvector *)(intptr_t)handle;
+    return data != NULL ? (jlong)data->size * data->item_size : 0;
+}
+
+/*
+ * Direct ByteBuffer over the vector of a DecodedData, the data is not copied.
+ * The buffer is only valid until the vector is released.
+ */
+JNIEXPORT jobject JNICALL
+Java_no_ntnu_bachelor2018_filmreader_PiqlLib_DecodedData_buffer(JNIEnv *env, jclass type, jlong handle) {
+    gvector * data = (gvector *)(intptr_t)handle;
+    if (data == NULL || data->buffer == NULL) {
+        return NULL;
+    }
+    return (*env)->NewDirectByteBuffer(env, data->buffer, (jlong)data->size * data->item_size);
+}
+
+JNIEXPORT void JNICALL
+Java_no_ntnu_bachelor2018_filmreader_PiqlLib_DecodedData_release(JNIEnv *env, jclass type, jlong handle) {
+    gvector_free((gvector *)(intptr_t)handle);
+}
+
+/*
+ * Copies a camera plane from a direct ByteBuffer into native image memory (e.g. a Mat)
+ * in a single pass. Rows are copied one by one when the plane has padded rows.
+ */
+JNIEXPORT jboolean JNICALL
+Java_no_ntnu_bachelor2018_filmreader_PiqlLib_Wrapper_copyPlane(JNIEnv *env, jclass type, jobject plane_,
+                                                               jint row_stride, jint width, jint height,
+                                                               jlong dst_addr, jint dst_stride) {
+    unsigned char *src = (unsigned char *)(*env)->GetDirectBufferAddress(env, plane_);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, plane_);
+    unsigned char *dst = (unsigned char *)(intptr_t)dst_addr;
+
+    // The last row of a padded plane does not have to include the padding
+    if (src == NULL || dst == NULL || width <= 0 || height <= 0 || row_stride < width || dst_stride < width
+        || capacity < (jlong)row_stride * (height - 1) + width) {
+        return JNI_FALSE;
+    }
+
+    if (row_stride == width && dst_stride == width) {
+        boxing_memory_copy(dst, src, (size_t)width * height);
+    } else {
+        for (int y = 0; y < height; y++) {
+            boxing_memory_copy(dst + (size_t)y * dst_stride, src + (size_t)y * row_stride, (size_t)width);
+        }
+    }
+    return JNI_TRUE;
 }
 
 #if defined (LOGGING_ENABLED)
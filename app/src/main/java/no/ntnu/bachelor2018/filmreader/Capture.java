@@ -6,7 +6,6 @@ import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Camera;
 import android.graphics.ImageFormat;
@@ -21,6 +20,9 @@ import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.preference.PreferenceManager;
 import android.support.annotation.MainThread;
 import android.support.annotation.NonNull;
@@ -32,29 +34,44 @@ import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
-import org.opencv.android.Utils;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.imgproc.Imgproc;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
+import filmreader.bacheloroppg.ntnu.no.filmreader.BuildConfig;
 import filmreader.bacheloroppg.ntnu.no.filmreader.R;
+import no.ntnu.bachelor2018.filmreader.PiqlLib.UnboxerContext;
+import no.ntnu.bachelor2018.filmreader.PiqlLib.Wrapper;
+import no.ntnu.bachelor2018.previewImageProcessing.Calibration;
+import no.ntnu.bachelor2018.previewImageProcessing.FinalProcessing;
 
 /**
  * The capture class controls the camera used for preview, it configures the camera on the
  * device and repeatedly captures frames to show using an imageView.
+ * As a {@link FrameSource} the frames can instead be handed to a custom listener.
  */
-public class Capture {
+public class Capture implements FrameSource {
 
     // Tag for this class
     private static final String TAG = "Capture";
     private static final int THREADS = 3;
-    private static List<ThreadWrapper> workers;    // List containing image processing workers
+    private static final int QUEUE_SIZE = 2;         // Frames that can wait for a free worker
+    private static final long METRICS_PERIOD_MS = 10000;  // Time between each metrics dump
+    private static final String METRICS_FILE = "metrics.csv";
+    private static final int POOL_FRAMES = 8;             // Frame sized buffers kept by the MatPool
+    private static final long LEAK_AGE_MS = 5000;         // Pool buffers checked out longer are reported
+    private FrameWorkerPool workers;                  // Long-lived image processing workers
+    private FramePipeline pipeline;                   // Warp and decode stages shared by the workers
+    private FrameWorkerPool.DropPolicy dropPolicy;    // What to do with frames when all workers are busy
+    private HandlerThread callbackThread;             // Thread receiving new images from the camera
+    private volatile FrameListener listener;          // Receives the frames instead of the preview if set
+    private volatile PreviewRenderer renderer;        // Shows the processed frames at the size of the preview
     // A callback object for tracking the progress of a CaptureRequest submitted to
     // the camera device.
     CameraCaptureSession.CaptureCallback cameraCaptureSessionCaptureCallback = new CameraCaptureSession.CaptureCallback() {
@@ -121,9 +138,39 @@ public class Capture {
             progressBar = activity.findViewById(R.id.progressBar);
 
             preview = activity.findViewById(R.id.imageView);
+            renderer = new PreviewRenderer(activity, preview);
             try {
                 // Create an ImageReader object where we can properly read images
-                img = ImageReader.newInstance(cSize.getWidth(), cSize.getHeight(), format, THREADS + 1);
+                img = ImageReader.newInstance(cSize.getWidth(), cSize.getHeight(), format,
+                        FrameWorkerPool.maxImages(THREADS, QUEUE_SIZE));
+
+                startMetrics();
+                // Room for the per frame buffers of all workers and pipeline stages
+                MatPool.setBudget((long) POOL_FRAMES * cSize.getWidth() * cSize.getHeight());
+                MatPool.setTrackOwners(BuildConfig.DEBUG);
+
+                // Start the workers once, each with its own reader and buffers
+                pipeline = new FramePipeline();
+                final int width = cSize.getWidth();
+                final int height = cSize.getHeight();
+
+                // Every camera has its own calibrations
+                Calibration.setCamera(camera.getId());
+                // Load the undistortion maps while the capture session starts
+                if (PipelineConfig.get().calibrate) {
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Calibration.prepare(width, height);
+                        }
+                    }, "Calibration Load Thread").start();
+                }
+                workers = new FrameWorkerPool(THREADS, QUEUE_SIZE, dropPolicy, new FrameWorkerPool.ConsumerFactory() {
+                    @Override
+                    public FrameWorkerPool.FrameConsumer create() {
+                        return new FrameWorker(width, height);
+                    }
+                });
 
                 // Whenever a new image is available
                 img.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
@@ -133,7 +180,7 @@ public class Capture {
                         onNewImageCapture(reader);
                     }
 
-                }, null);
+                }, new Handler(callbackThread.getLooper()));
 
                 // We get a surface from the image which is the output
                 Surface surface = img.getSurface();
@@ -201,7 +248,10 @@ public class Capture {
         // Get the preferences
         prefs = PreferenceManager.getDefaultSharedPreferences(activity);
 
-        workers = new LinkedList<>();
+        // Get the frame drop policy chosen in preferences, default latest wins
+        int policyIndex = Integer.valueOf(prefs.getString("drop_policy", "0"));
+        FrameWorkerPool.DropPolicy[] policies = FrameWorkerPool.DropPolicy.values();
+        dropPolicy = policies[policyIndex < policies.length ? policyIndex : 0];
 
         // Get the imageView to get a preview of the captures
         preview = activity.findViewById(R.id.imageView);
@@ -257,52 +307,75 @@ public class Capture {
     }
 
     /**
-     * Takes an image object and converts it to a bitmap. Only takes the first plane
+     * Processes a frame and shows the result in the preview.
      *
-     * @param image     - The image object as input
-     * @param byteArray
-     * @param bitmap
-     * @return A bitmap object of the image
+     * @param reader    The reader of the worker
+     * @param procImage The captured frame, processed at full resolution
      */
-    private static Bitmap processFrame(Image image, Reader reader, byte[] byteArray, Bitmap bitmap, int width, int height) {
-        //Get buffer of captured image
-        Image.Plane[] planes = image.getPlanes();
-        ByteBuffer buffer = planes[0].getBuffer();
-
-        //Initialize image variables once with correct sizes.
-
-        Mat procImage = new Mat(height,width,CvType.CV_8UC1);
+    private void processFrame(Reader reader, Mat procImage) {
+        // This will process the image
+        Mat result = reader.processFrame(procImage);
 
-		if(byteArray.length != height*width){
-		    byteArray = new byte[height*width];
+        //Only the preview is downsampled, processing keeps the full resolution
+        PreviewRenderer current = renderer;
+        if (current != null) {
+            current.render(result);
         }
-        buffer.get(byteArray);
-        procImage.put(0, 0, byteArray);
 
-        // This will process the image
-        procImage = reader.processFrame(procImage);
-        //procImage = rotateMat(procImage);
-        //Log.d(TAG, String.valueOf(procImage.cols()) + " " + String.valueOf(procImage.rows()));
+        //The frame buffer is reused for the next frame, only release images made by the reader
+        if (result != procImage) {
+            result.release();
+        }
+    }
 
+    /**
+     * Copies the luminance (Y) plane of a camera image into a Mat with a single native copy.
+     * Handles planes with padded rows (row stride larger than the width).
+     *
+     * @param image The YUV camera image
+     * @param dst   8 bit single channel Mat with the same size as the image
+     * @return True if the plane was copied, false otherwise
+     */
+    private static boolean copyLuminance(Image image, Mat dst) {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
 
-        //Resize if necessary(if processed frame is cropped)
-        if (procImage.width() != bitmap.getWidth() || procImage.height() != bitmap.getHeight()) {
-            bitmap.recycle();
-            bitmap = Bitmap.createBitmap(procImage.width(), procImage.height(), Bitmap.Config.ARGB_8888);
+        // The Y plane always has a pixel stride of 1, but check to be sure
+        if (plane.getPixelStride() != 1 || dst.width() != image.getWidth() || dst.height() != image.getHeight()) {
+            return false;
         }
+        return Wrapper.copyPlane(buffer, plane.getRowStride(), image.getWidth(), image.getHeight(),
+                dst.dataAddr(), (int) dst.step1(0));
+    }
 
-        //Convert processed image to bitmap that can be shown on screen
-        procImage.get(0, 0, byteArray);
-        Utils.matToBitmap(procImage, bitmap);
-        procImage.release();
-        procImage = null;
-        return bitmap;
+    /**
+     * Starts the camera and hands every captured frame to the listener instead of
+     * processing and showing it.
+     *
+     * @param listener Receives the frames, called from all the worker threads
+     */
+    @Override
+    public void start(FrameListener listener) {
+        this.listener = listener;
+        startCamera();
+    }
+
+    /**
+     * Stops the camera
+     */
+    @Override
+    public void stop() {
+        stopCamera();
+        listener = null;
     }
 
     /**
      * Take a picture with the back camera that has been found.
      */
     public void startCamera() {
+        // Images are received on a background thread so a blocking drop policy never stalls the UI
+        callbackThread = new HandlerThread("Capture Callback Thread");
+        callbackThread.start();
         try {
             // This operation is asynchronous and continues in the callback
             cameraManager.openCamera(backCamID, cameraDeviceStateCallback, null);
@@ -326,39 +399,52 @@ public class Capture {
             cam.close();
         }
 
+        stopWorkers();
+        if (renderer != null) {
+            renderer.release();
+            renderer = null;
+        }
+        Metrics.stopDump();
+        // Frames still being finished by the workers are younger than the leak age
+        MatPool.logLeaks(LEAK_AGE_MS);
+        Log.d(TAG, MatPool.stats());
+        MatPool.clear();
+
         if (img != null) {
             img.close();
         }
 
+        if (callbackThread != null) {
+            callbackThread.quitSafely();
+        }
+
         cam = null;
         img = null;
+        callbackThread = null;
     }
 
     /**
-     * This function is called when an image is captured, transforms an image
-     * to a {@link Mat}
+     * This function is called when an image is captured, hands the image
+     * to the worker pool which transforms it to a {@link Mat}
      *
      * @param reader - Imagereader object containing the result(s)
      */
     public void onNewImageCapture(ImageReader reader) {
-        boolean started = false;
-        for (int i = 0; i < workers.size() && !started; i++) {
-            if (workers.get(i).startThread(reader)) {
-                started = true;
-            }
-        }
-        if (!started && workers.size() < THREADS) {
-            /** Try catch */
-            try {
-                ThreadWrapper worker = new ThreadWrapper(reader);
-                workers.add(worker);
-                worker.startThread(reader);
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to create new thread");
-                e.printStackTrace();
-            }
+        if (workers == null) {
+            return;
         }
 
+        Image image;
+        try {
+            // Every frame is handed to the pool, which applies the drop policy and counts the drops.
+            // acquireLatestImage would close the older frames without them being counted
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            // All image buffers are in use
+            workers.countDropped();
+            return;
+        }
+        workers.submit(image);
     }
 
     /**
@@ -396,6 +482,22 @@ public class Capture {
         return output;
     }
 
+    /**
+     * Starts dumping the metrics of this capture session to the app's external files directory,
+     * where it can be pulled from the device without root.
+     */
+    private void startMetrics() {
+        File dir = activity.getExternalFilesDir(null);
+        if (dir == null) {
+            dir = activity.getFilesDir();
+        }
+        Metrics.reset();
+        Metrics.startDump(new File(dir, METRICS_FILE),
+                Build.MANUFACTURER + " " + Build.MODEL + " API " + Build.VERSION.SDK_INT + " "
+                        + cSize.getWidth() + "x" + cSize.getHeight() + " " + dropPolicy,
+                METRICS_PERIOD_MS);
+    }
+
     /**
      * Gets the size
      *
@@ -404,97 +506,60 @@ public class Capture {
     public Size getSize() {
         return cSize;
     }
-    public static synchronized void stopWorkers(){
+    /**
+     * Stops the image processing workers and pipeline stages, frames waiting to be processed are dropped.
+     */
+    public synchronized void stopWorkers(){
+        // Abort the decodes first, the workers wait for their frames to finish
+        FinalProcessing.cancelDecodes();
         if(workers != null){
-            workers.clear();
+            // Returns once no worker reads the camera images any more, so they can be closed
+            if (!workers.shutdown()) {
+                Log.e(TAG, "Workers still running while the camera is closed");
+            }
+            workers = null;
         }
+        if(pipeline != null){
+            pipeline.shutdown();
+            pipeline = null;
+        }
+        // Abort the decodes still running, and free the native unboxers once they stop
+        FinalProcessing.cancelDecodes();
+        UnboxerContext.closeAll();
     }
 
     /**
-     * Contains a set of variables that can be used and reused with a single thread at the time.
+     * Contains a set of variables that is used and reused by a single worker thread.
      */
-    public class ThreadWrapper {
-        byte[] byteArray;
-        RunnableWorker p1;
-        private ImageReader imReader;
-        private Bitmap bitmap;
+    public class FrameWorker implements FrameWorkerPool.FrameConsumer {
+        private Mat frame;
         private Reader reader;
-        private Thread thread;
-        private int width, height;
 
-        public ThreadWrapper(ImageReader imReader) {
-            this.imReader = imReader;
-            init();
+        public FrameWorker(int width, int height) {
+            frame = new Mat(height, width, CvType.CV_8UC1);
+            reader = new Reader(pipeline);
         }
 
-        private void init() {
-            width = imReader.getWidth();
-            height = imReader.getHeight();
-            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-
-            byteArray = new byte[width * height];
-            reader = new Reader();
-            p1 = new RunnableWorker(imReader, byteArray, reader, bitmap);
-        }
-
-        public boolean startThread(ImageReader newReader) {
-            if(imReader.getHeight() != newReader.getHeight()
-                    || imReader.getWidth() != newReader.getWidth()){
-                imReader = newReader;
-                init();
+        @Override
+        public void process(Image image) {
+            if (image.getHeight() <= 0) {
+                return;
             }
-            if (thread == null || !thread.isAlive()) {
-                thread = new Thread(p1, "Imgproc Thread");
-                thread.start();
-                return true;
+            //Copy the Y plane of the captured image into the frame buffer
+            long start = Metrics.start();
+            if (!copyLuminance(image, frame)) {
+                Log.e(TAG, "Could not copy image plane");
+                return;
             }
-            return false;
-        }
-    }
-    /**
-     * Class for updating the view on another thread while the main thread can do image processing
-     */
-    public class RunnableWorker implements Runnable {
-        byte[] byteArray;
-        private ImageReader imReader;
-        private Reader reader;
-        private Bitmap bitmap;
-
-        public RunnableWorker(ImageReader imReader, byte[] byteArray, Reader reader, Bitmap bitmap) {
-            this.imReader = imReader;
-            this.byteArray = byteArray;
-            this.reader = reader;
-            this.bitmap = bitmap;
-        }
+            Metrics.record(Metrics.Stage.INGEST, start);
 
-        public void run() {
-            Image image = null;
-            synchronized (imReader) {
-                image = imReader.acquireLatestImage();
+            FrameListener current = listener;
+            if (current != null) {
+                current.onFrame(frame);
+                return;
             }
-            if (image != null && image.getHeight() > 0) {
-                int width = image.getWidth();
-                int height = image.getHeight();
-                Log.d(TAG, "Picture size: " + width + "x" + height);
-                bitmap = processFrame(image, reader, byteArray, bitmap, width, height);
 
-                activity.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (preview == null) {
-                            Log.e(TAG, "preview is null");
-                        } else if (bitmap == null) {
-                            Log.e(TAG, "bitmap is null");
-                        } else {
-                            preview.setImageBitmap(bitmap);
-                        }
-                    }
-                });
-
-                if(image != null){
-                    image.close();
-                }
-            }
+            processFrame(reader, frame);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,103 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Replays the recorded frames in a directory in file name order.
+ * PNG and BMP images are converted to grayscale, raw files (.raw or .y) must contain
+ * exactly one Y-plane dump of the given size.
+ */
+public class DirectoryFrameSource extends ReplayFrameSource {
+
+    private final File[] files;         // Frame files sorted by name
+    private final int rawWidth, rawHeight;
+    private byte[] rawBuffer;
+    private int index;                  // Index of the next file to read
+
+    /**
+     * @param directory Directory with the recorded frames
+     * @param rawWidth  Width of raw frames in pixels, not used for PNG and BMP
+     * @param rawHeight Height of raw frames in pixels, not used for PNG and BMP
+     * @param fps       Frames per second to replay at, 0 to replay as fast as possible
+     * @param loop      True to start over when all files are replayed
+     */
+    public DirectoryFrameSource(File directory, int rawWidth, int rawHeight, double fps, boolean loop) {
+        super(fps, loop);
+        File[] found = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && (isImage(file) || isRaw(file));
+            }
+        });
+        this.files = found == null ? new File[0] : found;
+        Arrays.sort(this.files);
+        this.rawWidth = rawWidth;
+        this.rawHeight = rawHeight;
+    }
+
+    /**
+     * @return Number of frame files found in the directory
+     */
+    public int getFileCount() {
+        return files.length;
+    }
+
+    @Override
+    protected Mat nextFrame() throws IOException {
+        while (index < files.length) {
+            File file = files[index++];
+            Mat frame = isRaw(file) ? readRaw(file) : Imgcodecs.imread(file.getPath(), Imgcodecs.IMREAD_GRAYSCALE);
+
+            // Skip files that could not be read
+            if (frame != null && !frame.empty()) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void rewind() {
+        index = 0;
+    }
+
+    private Mat readRaw(File file) throws IOException {
+        if (rawBuffer == null) {
+            rawBuffer = new byte[rawWidth * rawHeight];
+        }
+        if (file.length() != rawBuffer.length) {
+            return null;
+        }
+        FileInputStream input = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < rawBuffer.length) {
+                int count = input.read(rawBuffer, read, rawBuffer.length - read);
+                if (count < 0) {
+                    return null;
+                }
+                read += count;
+            }
+        } finally {
+            input.close();
+        }
+        return RawFrameSource.toMat(rawBuffer, rawWidth, rawHeight, rawWidth);
+    }
+
+    private static boolean isImage(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".png") || name.endsWith(".bmp");
+    }
+
+    private static boolean isRaw(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".raw") || name.endsWith(".y");
+    }
+}
@@ -35,30 +35,35 @@ import android.widget.ListView;
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import filmreader.bacheloroppg.ntnu.no.filmreader.BuildConfig;
 import filmreader.bacheloroppg.ntnu.no.filmreader.R;
 import no.ntnu.bachelor2018.filmreader.FileDisplayClasses.ShowImage;
 import no.ntnu.bachelor2018.filmreader.FileDisplayClasses.ShowText;
+import no.ntnu.bachelor2018.filmreader.PiqlLib.DecodedData;
 
 /**
- * This activity displays the content inside a tar file at the location given by the path
- * variable. It creates a ListView where the user can browse the files and look at them.
+ * This activity displays the content inside the tar file decoded from a frame, given with
+ * {@link #setData(DecodedData)}. It creates a ListView where the user can browse the files and look at them.
  * Currently loads the whole tar file into ram.
  */
 public class FileDisplay extends AppCompatActivity {
     private final String TAG = this.getClass().getSimpleName();
-    // The path to read tar file from. NB: this is also set in the wrapper after successfull unboxing
-    //TODO(håkon) remove test path and replace with path(remove test from filename)
-    private final String path = "/data/data/filmreader.bacheloroppg.ntnu.no.filmreader/app_tardir/output.tar";
+    // Copy of the decoded data in the cache directory, to show it again after the process is restored
+    private static final String CACHE_FILE = "decoded.tar";
+    // The decoded tar file, too large to send over Intent. Read straight from native memory
+    private static DecodedData data;
+    // The data shown by this display, freed when the display is left
+    private DecodedData shown;
     // Array with all the file names
     ArrayList<String> entryNames;
 
@@ -79,8 +84,35 @@ public class FileDisplay extends AppCompatActivity {
         currentEntryNames = new ArrayList<>();
         fileData = new ArrayList<>();
 
-        try (TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(
-                new BufferedInputStream(new FileInputStream(path)))) {
+        // The data stays set when the activity is recreated, e.g. on rotation.
+        // After the process is restored only the copy saved in the cache is left
+        File cached = new File(getCacheDir(), CACHE_FILE);
+        InputStream input;
+        shown = getData();
+        if (shown != null) {
+            input = shown.openStream();
+        } else if (savedInstanceState != null && cached.exists()) {
+            try {
+                input = new FileInputStream(cached);
+            } catch (FileNotFoundException e) {
+                input = null;
+            }
+        } else {
+            input = null;
+        }
+        if (savedInstanceState == null) {
+            // Left from a display of earlier data
+            cached.delete();
+        }
+        if (input == null) {
+            Log.e(TAG, "No decoded data");
+
+            // Send an alert to the user that there is no file (or data)
+            showError(R.string.error_nodataread);
+            return;
+        }
+
+        try (TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(input)) {
             // Open the stream and read the archive
 
 
@@ -126,36 +158,88 @@ public class FileDisplay extends AppCompatActivity {
 
             //Opens first file immediately
             openFile(0);
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "File not found");
-
-            // Send an alert to the user that there is no file (or data)
-            AlertDialog.Builder builder = new AlertDialog.Builder(this);
-            builder.setTitle(getResources().getString(R.string.error_title));
-            builder.setMessage(getResources().getString(R.string.error_nodataread));
-            builder.setNeutralButton("OK", new DialogInterface.OnClickListener() {
-                @Override
-                public void onClick(DialogInterface d, int i) {
-                    // When the user dismisses the dialog we close the application
-                    finish();
-                }
-            });
-            builder.create().show();
         } catch (IOException e) {
             Log.d(TAG, "IO Exception");
 
             // Send an alert to the user that an error occured
-            AlertDialog.Builder builder = new AlertDialog.Builder(this);
-            builder.setTitle(getResources().getString(R.string.error_title));
-            builder.setMessage(getResources().getString(R.string.error_message));
-            builder.setNeutralButton("OK", new DialogInterface.OnClickListener() {
-                @Override
-                public void onClick(DialogInterface d, int i) {
-                    // When the user dismisses the dialog we close the application
-                    finish();
+            showError(R.string.error_message);
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        // The process may be stopped while in the background, save a copy of the data once
+        File cached = new File(getCacheDir(), CACHE_FILE);
+        if (shown != null && !cached.exists()) {
+            try (FileOutputStream output = new FileOutputStream(cached)) {
+                ByteBuffer buffer = shown.getBuffer();
+                while (buffer.hasRemaining()) {
+                    output.getChannel().write(buffer);
                 }
-            });
-            builder.create().show();
+            } catch (IOException e) {
+                Log.d(TAG, "Failed to save the decoded data");
+                cached.delete();
+            }
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Only free the data when the display is left, not when it is recreated
+        if (isFinishing()) {
+            if (shown != null) {
+                releaseData(shown);
+                shown = null;
+            }
+            new File(getCacheDir(), CACHE_FILE).delete();
+        }
+    }
+
+    /**
+     * Shows an error dialog, the display is closed when it is dismissed.
+     *
+     * @param message Resource id of the message
+     */
+    private void showError(int message) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(getResources().getString(R.string.error_title));
+        builder.setMessage(getResources().getString(message));
+        builder.setNeutralButton("OK", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface d, int i) {
+                // When the user dismisses the dialog we close the application
+                finish();
+            }
+        });
+        builder.create().show();
+    }
+
+    /**
+     * Sets the decoded tar file to display, the display frees it once it is left.
+     * Data set earlier is freed.
+     *
+     * @param data The decoded data
+     */
+    public static synchronized void setData(DecodedData data) {
+        if (FileDisplay.data != null) {
+            FileDisplay.data.close();
+        }
+        FileDisplay.data = data;
+    }
+
+    private static synchronized DecodedData getData() {
+        return data;
+    }
+
+    /**
+     * Frees the data, unless other data has been set since it was shown.
+     */
+    private static synchronized void releaseData(DecodedData tar) {
+        if (data == tar) {
+            data.close();
+            data = null;
         }
     }
 
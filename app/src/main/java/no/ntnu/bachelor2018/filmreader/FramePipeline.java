@@ -0,0 +1,183 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import no.ntnu.bachelor2018.previewImageProcessing.FinalProcessing;
+
+/**
+ * The stages following frame detection. Undistortion and frame detection run on the capture
+ * workers at preview rate, found frames are then handed to these stages:
+ * -Warp: perspective warp, inversion and orientation
+ * -Decode: native unboxing of the warped frame
+ * Every stage has its own thread and a bounded queue, when a stage is full new frames are
+ * dropped so a slow decode never holds back detection.
+ */
+public class FramePipeline {
+
+    // Tag for this class
+    private static final String TAG = "FramePipeline";
+    // Extra area around the frame corners copied for the warp, as a fraction of the frame size.
+    // Must cover the margin added around the frame by FinalProcessing.
+    private static final double CROP_MARGIN = 0.15;
+
+    private final PipelineStage warpStage;     // Perspective warp and orientation
+    private final PipelineStage decodeStage;   // Native unboxing
+    private final FinalProcessing finalProc;   // Only used from the warp and decode threads
+
+    public FramePipeline() {
+        warpStage = new PipelineStage("Warp", 1, 1);
+        decodeStage = new PipelineStage("Decode", 1, 1);
+        finalProc = new FinalProcessing();
+    }
+
+    /**
+     * Hands a found frame to the warp stage. Only the area around the corners is copied,
+     * so the caller can reuse the camera frame as soon as this returns.
+     *
+     * @param frame   The undistorted camera frame
+     * @param corners The four corners of the film frame
+     * @return true if the frame was queued, false if it was dropped
+     */
+    public boolean submit(Mat frame, List<Point> corners) {
+        return submit(frame, corners, false);
+    }
+
+    /**
+     * Hands a found frame to the warp stage, see {@link #submit(Mat, List)}
+     *
+     * @param frame     The camera frame
+     * @param corners   The four corners of the film frame
+     * @param undistort True if the camera frame is not undistorted, the warp then undistorts the film frame
+     * @return true if the frame was queued, false if it was dropped
+     */
+    public boolean submit(Mat frame, List<Point> corners, boolean undistort) {
+        // Do not copy anything if the warp stage would drop it anyway
+        if (corners == null || corners.size() != 4 || !warpStage.hasCapacity()) {
+            return false;
+        }
+
+        final int frameWidth = frame.width();
+        final int frameHeight = frame.height();
+        Rect bounds = cropBounds(corners, frameWidth, frameHeight);
+        if (bounds.width <= 0 || bounds.height <= 0) {
+            return false;
+        }
+
+        // Copy the frame area and move the corners into the coordinates of the copy
+        final Mat crop = MatPool.acquireRegion(bounds.width, bounds.height, frame.type());
+        Mat area = frame.submat(bounds);
+        area.copyTo(crop);
+        area.release();
+        final List<Point> cropCorners = new ArrayList<>(4);
+        final List<Point> frameCorners = new ArrayList<>(4);
+        for (Point pt : corners) {
+            cropCorners.add(new Point(pt.x - bounds.x, pt.y - bounds.y));
+            frameCorners.add(new Point(pt.x, pt.y));
+        }
+        final Point origin = undistort ? new Point(bounds.x, bounds.y) : null;
+
+        boolean queued = warpStage.submit(new PipelineStage.Job() {
+            @Override
+            public void run() {
+                warp(crop, cropCorners, origin, frameCorners, frameWidth, frameHeight);
+            }
+
+            @Override
+            public void discard() {
+                MatPool.release(crop);
+            }
+        });
+        if (!queued) {
+            MatPool.release(crop);
+        }
+        return queued;
+    }
+
+    /**
+     * Warp stage. Warps and rotates the frame and hands it to the decode stage.
+     * The corners in the camera frame are passed on to stack frames while the camera is still.
+     * If origin is set the crop is not undistorted, it is undistorted while warping.
+     */
+    private void warp(Mat crop, List<Point> corners, Point origin, final List<Point> frameCorners, int maxWidth, int maxHeight) {
+        final Mat rotated;
+        try {
+            rotated = finalProc.warpImage(crop, corners, origin, maxWidth, maxHeight, null);
+        } finally {
+            MatPool.release(crop);
+        }
+
+        //Failed to warp or rotate
+        if (rotated == null) {
+            return;
+        }
+
+        boolean queued = decodeStage.submit(new PipelineStage.Job() {
+            @Override
+            public void run() {
+                try {
+                    finalProc.decode(rotated, frameCorners);
+                } finally {
+                    MatPool.release(rotated);
+                }
+            }
+
+            @Override
+            public void discard() {
+                MatPool.release(rotated);
+            }
+        });
+        if (!queued) {
+            MatPool.release(rotated);
+        }
+    }
+
+    /**
+     * Gets the bounding rectangle of the corners with a margin, limited to the frame.
+     */
+    private static Rect cropBounds(List<Point> corners, int width, int height) {
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (Point pt : corners) {
+            minX = Math.min(minX, pt.x);
+            minY = Math.min(minY, pt.y);
+            maxX = Math.max(maxX, pt.x);
+            maxY = Math.max(maxY, pt.y);
+        }
+        double marginX = (maxX - minX) * CROP_MARGIN;
+        double marginY = (maxY - minY) * CROP_MARGIN;
+
+        int x = (int) Math.max(0, Math.floor(minX - marginX));
+        int y = (int) Math.max(0, Math.floor(minY - marginY));
+        int right = (int) Math.min(width, Math.ceil(maxX + marginX) + 1);
+        int bottom = (int) Math.min(height, Math.ceil(maxY + marginY) + 1);
+        return new Rect(x, y, right - x, bottom - y);
+    }
+
+    /**
+     * @return The stages of the pipeline, in processing order
+     */
+    public PipelineStage[] getStages() {
+        return new PipelineStage[]{warpStage, decodeStage};
+    }
+
+    /**
+     * Stops all stages, frames waiting in the queues are dropped.
+     */
+    public void shutdown() {
+        warpStage.shutdown();
+        decodeStage.shutdown();
+        Log.d(TAG, toString());
+    }
+
+    @Override
+    public String toString() {
+        return warpStage + ", " + decodeStage;
+    }
+}
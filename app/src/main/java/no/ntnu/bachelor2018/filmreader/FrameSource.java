@@ -0,0 +1,36 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import org.opencv.core.Mat;
+
+/**
+ * A source of grayscale frames for the {@link Reader} pipeline, e.g. the camera
+ * ({@link Capture}) or recorded frames replayed from storage ({@link RawFrameSource},
+ * {@link DirectoryFrameSource}).
+ */
+public interface FrameSource {
+
+    /**
+     * Receives the frames from a source.
+     */
+    interface FrameListener {
+        /**
+         * Called for every frame. The frame is only valid during the call and may be modified.
+         * Sources with several worker threads (the camera) call this from all of them.
+         *
+         * @param frame Grayscale frame (1 channel 8 bit depth)
+         */
+        void onFrame(Mat frame);
+    }
+
+    /**
+     * Starts delivering frames to the listener.
+     *
+     * @param listener Receives the frames
+     */
+    void start(FrameListener listener);
+
+    /**
+     * Stops delivering frames.
+     */
+    void stop();
+}
@@ -0,0 +1,272 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import android.media.Image;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed set of long-lived image processing workers fed with camera frames.
+ * Every worker owns its own {@link FrameConsumer} (and with it its own {@link Reader} and buffers),
+ * so no threads are created while capturing. Frames arriving while all workers are busy are
+ * queued in a bounded queue, and dropped according to the selected {@link DropPolicy} when it is full.
+ */
+public class FrameWorkerPool {
+
+    // Tag for this class
+    private static final String TAG = "FrameWorkerPool";
+    // Number of received frames between each statistics log line
+    private static final int STATS_INTERVAL = 100;
+    // Longest time shutdown waits for the workers to finish their frames
+    private static final long SHUTDOWN_TIMEOUT_MS = 2000;
+
+    /**
+     * What to do with a new frame when the queue is full.
+     */
+    public enum DropPolicy {
+        LATEST_WINS,    // Drop every queued frame, only the newest frame is kept
+        DROP_OLDEST,    // Drop the oldest queued frame to make room for the new one
+        BLOCK           // Block the camera callback until a worker has taken a frame
+    }
+
+    /**
+     * Processes frames on one worker thread. One instance is created for every worker
+     * so the implementation does not have to be thread safe.
+     */
+    public interface FrameConsumer {
+        /**
+         * Processes a single frame. The image is closed by the pool afterwards.
+         *
+         * @param image The camera image to process
+         */
+        void process(Image image);
+    }
+
+    /**
+     * Creates the per worker {@link FrameConsumer}.
+     */
+    public interface ConsumerFactory {
+        FrameConsumer create();
+    }
+
+    private final BlockingQueue<Image> queue;   // Frames waiting for a free worker
+    private final DropPolicy policy;            // Policy used when the queue is full
+    private final Thread[] workers;             // The worker threads, started once
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private volatile boolean running;
+
+    /**
+     * Creates and starts the workers.
+     *
+     * @param workerCount Number of worker threads
+     * @param queueSize   Number of frames that can wait for a worker
+     * @param policy      What to do with new frames when the queue is full
+     * @param factory     Creates one {@link FrameConsumer} for each worker
+     */
+    public FrameWorkerPool(int workerCount, int queueSize, DropPolicy policy, ConsumerFactory factory) {
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.policy = policy;
+        this.workers = new Thread[workerCount];
+        this.running = true;
+
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(new Worker(factory.create()), "Imgproc Thread " + i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Gets the number of images needed to size the {@link android.media.ImageReader} so the
+     * camera never runs out of buffers. One extra image is left for the camera to fill
+     * while the workers and the queue hold the others.
+     *
+     * @param workerCount Number of worker threads
+     * @param queueSize   Number of frames that can wait for a worker
+     * @return The maximum number of images acquired at the same time
+     */
+    public static int maxImages(int workerCount, int queueSize) {
+        return workerCount + queueSize + 1;
+    }
+
+    /**
+     * Hands a new frame to the workers. The pool takes ownership of the image and closes it
+     * when it is processed or dropped.
+     *
+     * @param image The captured image
+     */
+    public void submit(Image image) {
+        if (image == null) {
+            return;
+        }
+        Metrics.count(Metrics.Counter.RECEIVED);
+        if (received.incrementAndGet() % STATS_INTERVAL == 0) {
+            logStats();
+        }
+        if (!running) {
+            drop(image);
+            return;
+        }
+
+        switch (policy) {
+            case LATEST_WINS:
+                // Everything still waiting is older than this frame
+                if (!queue.offer(image)) {
+                    Image old;
+                    while ((old = queue.poll()) != null) {
+                        drop(old);
+                    }
+                    offerOrDrop(image);
+                }
+                break;
+            case DROP_OLDEST:
+                if (!queue.offer(image)) {
+                    drop(queue.poll());
+                    offerOrDrop(image);
+                }
+                break;
+            case BLOCK:
+                try {
+                    queue.put(image);
+                } catch (InterruptedException e) {
+                    drop(image);
+                    Thread.currentThread().interrupt();
+                }
+                break;
+        }
+    }
+
+    /**
+     * Stops the workers and closes all frames still waiting in the queue.
+     * Waits for the frames currently being processed, so the images and buffers they read can be
+     * freed once this returns. Gives up after {@link #SHUTDOWN_TIMEOUT_MS}.
+     *
+     * @return True if every worker stopped, false if one is still processing a frame
+     */
+    public boolean shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        drainQueue();
+
+        boolean stopped = true;
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MS;
+        for (Thread worker : workers) {
+            long wait = deadline - System.currentTimeMillis();
+            try {
+                if (wait > 0) {
+                    worker.join(wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (worker.isAlive()) {
+                Log.e(TAG, worker.getName() + " did not stop");
+                stopped = false;
+            }
+        }
+        // A blocked camera callback may have queued a frame while the workers stopped
+        drainQueue();
+        logStats();
+        return stopped;
+    }
+
+    /**
+     * Records a frame as dropped when the queue is full or the camera had no free buffer.
+     */
+    public void countDropped() {
+        received.incrementAndGet();
+        dropped.incrementAndGet();
+        Metrics.count(Metrics.Counter.RECEIVED);
+        Metrics.count(Metrics.Counter.DROPPED);
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    /**
+     * @return Number of frames in the queue waiting for a worker
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return Fraction of the received frames that were dropped, 0 if no frames are received
+     */
+    public double getDropRate() {
+        long total = received.get();
+        return total == 0 ? 0 : (double) dropped.get() / total;
+    }
+
+    private void drainQueue() {
+        Image image;
+        while ((image = queue.poll()) != null) {
+            drop(image);
+        }
+    }
+
+    private void offerOrDrop(Image image) {
+        if (!queue.offer(image)) {
+            drop(image);
+        }
+    }
+
+    private void drop(Image image) {
+        if (image != null) {
+            dropped.incrementAndGet();
+            Metrics.count(Metrics.Counter.DROPPED);
+            image.close();
+        }
+    }
+
+    private void logStats() {
+        Log.d(TAG, "Frames received: " + received.get() + " processed: " + processed.get()
+                + " dropped: " + dropped.get() + " (" + Math.round(getDropRate() * 100) + "%)");
+    }
+
+    /**
+     * Takes frames from the queue and processes them until the pool is shut down.
+     */
+    private class Worker implements Runnable {
+        private final FrameConsumer consumer;
+
+        Worker(FrameConsumer consumer) {
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Image image;
+                try {
+                    image = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    consumer.process(image);
+                    processed.incrementAndGet();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to process frame");
+                    e.printStackTrace();
+                } finally {
+                    image.close();
+                }
+            }
+        }
+    }
+}
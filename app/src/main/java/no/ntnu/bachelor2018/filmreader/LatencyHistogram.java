@@ -0,0 +1,151 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies, recorded from any thread.
+ * Latencies are counted in logarithmic buckets growing by {@link #GROWTH} from 1 microsecond,
+ * so percentiles are accurate to within about 10% from microseconds up to minutes without
+ * storing the individual samples.
+ */
+public class LatencyHistogram {
+
+    // Relative width of each bucket
+    private static final double GROWTH = 1.1;
+    // Bucket 0 holds everything below 1 microsecond, the last bucket everything above about 3 minutes
+    private static final int BUCKETS = 200;
+    private static final double LOG_GROWTH = Math.log(GROWTH);
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();  // Sum of all latencies in nanoseconds
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one latency.
+     *
+     * @param nanos The latency in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        buckets.incrementAndGet(bucketOf(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Clears all recorded latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @return Number of recorded latencies
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets a consistent copy of the current state. Latencies recorded while copying may be left
+     * out, but the percentiles are always calculated from the copied buckets.
+     *
+     * @return The count, mean, p50, p95, p99 and max of the recorded latencies
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long copied = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = buckets.get(i);
+            copied += copy[i];
+        }
+        long mean = copied == 0 ? 0 : total.get() / Math.max(count.get(), 1);
+        long largest = max.get();
+        return new Snapshot(copied, mean,
+                percentile(copy, copied, 0.50, largest),
+                percentile(copy, copied, 0.95, largest),
+                percentile(copy, copied, 0.99, largest),
+                largest);
+    }
+
+    private static int bucketOf(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        if (micros < 1) {
+            return 0;
+        }
+        int bucket = 1 + (int) (Math.log(micros) / LOG_GROWTH);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * @return The upper limit of the bucket in nanoseconds
+     */
+    private static long upperBound(int bucket) {
+        return (long) (Math.pow(GROWTH, bucket) * 1000);
+    }
+
+    /**
+     * Gets the upper limit of the bucket containing the percentile, never above the largest latency.
+     */
+    private static long percentile(long[] copy, long count, double fraction, long largest) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < copy.length; i++) {
+            seen += copy[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), largest);
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Latency statistics at one point in time, all latencies in nanoseconds.
+     */
+    public static class Snapshot {
+        public final long count;
+        public final long mean;
+        public final long p50;
+        public final long p95;
+        public final long p99;
+        public final long max;
+
+        Snapshot(long count, long mean, long p50, long p95, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count + " p50=" + millis(p50) + " p95=" + millis(p95)
+                    + " p99=" + millis(p99) + " max=" + millis(max) + " ms";
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.US, "%.2f", nanos / 1e6);
+        }
+    }
+}
@@ -28,7 +28,6 @@ import android.widget.ToggleButton;
 import org.opencv.android.OpenCVLoader;
 import org.w3c.dom.Text;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.BitSet;
 
@@ -109,6 +108,7 @@ public class MainActivity extends AppCompatActivity {
         Log.d(TAG, "RAN ONCREATE");
         context = this;
         isActive = true;
+        PipelineConfig.register(this);
 
         //requestWindowFeature(Window.FEATURE_NO_TITLE);
         //this.getWindow().setFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN, WindowManager.LayoutParams.FLAG_FULLSCREEN);
@@ -231,7 +231,6 @@ public class MainActivity extends AppCompatActivity {
      *
      */
     public void startCapture() {
-        setupDir();
         capture = new Capture(this);
         capture.startCamera();
     }
@@ -257,14 +256,6 @@ public class MainActivity extends AppCompatActivity {
 
     }
 
-    /**
-     * Make sure required directories exist.
-     */
-    private void setupDir() {
-        File file = new File("/data/data/filmreader.bacheloroppg.ntnu.no.filmreader/app_tardir/");
-        file.mkdirs();
-    }
-
     public static void progress() {
         Toast toast = Toast.makeText(context, "Status" , Toast.LENGTH_LONG);
         toast.show();
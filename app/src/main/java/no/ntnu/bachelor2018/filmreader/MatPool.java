@@ -0,0 +1,336 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of native image buffers reused between frames, replaces allocating new Mats for every frame.
+ * Buffers are looked up by their size class (width, height and type) and reference counted:
+ * {@link #acquire(int, int, int)} checks a buffer out, {@link #release(Mat)} hands it back when the
+ * last reference is gone. Idle buffers are kept within a byte budget, the least recently used are
+ * released first. Buffers checked out for too long are reported by {@link #findLeaks(long)}.
+ * Buffers whose size follows the found frame change size on every frame and would never be reused,
+ * {@link #acquireRegion(int, int, int)} rounds their size up to a grid and hands out a region of a
+ * pooled buffer instead.
+ */
+public class MatPool {
+
+    // Tag for this class
+    private static final String TAG = "MatPool";
+    // Budget used until setBudget is called
+    private static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+    // Sizes of buffers from acquireRegion are rounded up to a multiple of this many pixels
+    private static final int REGION_GRID = 64;
+
+    // Idle buffers by size class, the most recently released is at the end
+    private static final Map<Long, ArrayDeque<Mat>> free = new HashMap<>();
+    // All idle buffers in the order they were released, the least recently used first
+    private static final LinkedHashMap<Mat, Long> idle = new LinkedHashMap<>();
+    // Buffers checked out and their references
+    private static final Map<Mat, Entry> checkedOut = new IdentityHashMap<>();
+    private static long budget = DEFAULT_BUDGET;
+    private static long idleBytes, checkedOutBytes;
+    private static long hits, misses, evictions;
+    private static boolean trackOwners;
+
+    /**
+     * A checked out buffer.
+     */
+    private static class Entry {
+        final long key;
+        final long bytes;
+        final long acquired;        // Time of the acquire in milliseconds
+        final String owner;         // Thread and caller that checked the buffer out
+        final Mat buffer;           // The pooled buffer, null if the checked out Mat is the buffer itself
+        int references = 1;
+
+        Entry(long key, long bytes, String owner, Mat buffer) {
+            this.key = key;
+            this.bytes = bytes;
+            this.acquired = System.currentTimeMillis();
+            this.owner = owner;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Checks out a buffer, reused if an idle buffer of the same size and type exists.
+     * The content of the buffer is undefined. Hand it back with {@link #release(Mat)}.
+     *
+     * @param width  Width of the buffer
+     * @param height Height of the buffer
+     * @param type   Type of the buffer (CvType. ...)
+     * @return A buffer with one reference
+     */
+    public static synchronized Mat acquire(int width, int height, int type) {
+        Mat mat = take(width, height, type);
+        checkedOut.put(mat, new Entry(key(width, height, type), bytes(mat), owner(), null));
+        return mat;
+    }
+
+    /**
+     * Checks out a buffer for a size that changes from frame to frame, e.g. the warped frame.
+     * The size is rounded up to a grid so buffers of nearby sizes are reused, and the top left
+     * region of the requested size is handed out. Rows of the region may be padded, so it must
+     * be read with its step, as OpenCV does. Hand it back with {@link #release(Mat)}.
+     *
+     * @param width  Width of the region
+     * @param height Height of the region
+     * @param type   Type of the region (CvType. ...)
+     * @return A region of a pooled buffer with one reference
+     */
+    public static synchronized Mat acquireRegion(int width, int height, int type) {
+        int bufferWidth = roundUp(width);
+        int bufferHeight = roundUp(height);
+        Mat buffer = take(bufferWidth, bufferHeight, type);
+        Mat region = bufferWidth == width && bufferHeight == height ? buffer : buffer.submat(0, height, 0, width);
+        checkedOut.put(region, new Entry(key(bufferWidth, bufferHeight, type), bytes(buffer), owner(),
+                region != buffer ? buffer : null));
+        return region;
+    }
+
+    /**
+     * Takes an idle buffer of the size class, or creates one, and counts it as checked out.
+     */
+    private static Mat take(int width, int height, int type) {
+        long key = key(width, height, type);
+        Mat mat = null;
+        ArrayDeque<Mat> buffers = free.get(key);
+        if (buffers != null) {
+            mat = buffers.pollLast();
+        }
+
+        long bytes;
+        if (mat != null) {
+            idle.remove(mat);
+            bytes = bytes(mat);
+            idleBytes -= bytes;
+            hits++;
+        } else {
+            mat = new Mat(height, width, type);
+            bytes = bytes(mat);
+            misses++;
+            // Make room for the new buffer
+            evict(budget - checkedOutBytes - bytes);
+            if (checkedOutBytes + bytes > budget) {
+                Log.w(TAG, "Checked out buffers exceed the budget of " + budget + " bytes");
+                logLeaks(0);
+            }
+        }
+
+        checkedOutBytes += bytes;
+        return mat;
+    }
+
+    /**
+     * Adds a reference to a checked out buffer, so it can be shared with another thread.
+     * Every reference must be handed back with {@link #release(Mat)}.
+     *
+     * @param mat A buffer from {@link #acquire(int, int, int)}
+     */
+    public static synchronized void retain(Mat mat) {
+        Entry entry = checkedOut.get(mat);
+        if (entry == null) {
+            throw new IllegalArgumentException("Buffer is not checked out from the pool");
+        }
+        entry.references++;
+    }
+
+    /**
+     * Hands back one reference to a buffer. When the last reference is gone the buffer is kept
+     * for reuse, or released if the pool is over its budget.
+     * Mats not from the pool are released directly.
+     *
+     * @param mat A buffer from {@link #acquire(int, int, int)} or {@link #acquireRegion(int, int, int)},
+     *            null is ignored
+     */
+    public static synchronized void release(Mat mat) {
+        if (mat == null) {
+            return;
+        }
+        Entry entry = checkedOut.get(mat);
+        if (entry == null) {
+            mat.release();
+            return;
+        }
+        if (--entry.references > 0) {
+            return;
+        }
+
+        checkedOut.remove(mat);
+        checkedOutBytes -= entry.bytes;
+        if (entry.buffer != null) {
+            // Only the region header is released, the data stays with the pooled buffer
+            mat.release();
+            mat = entry.buffer;
+        }
+        // Only keep the buffer if it fits in the budget next to the others
+        evict(budget - checkedOutBytes - entry.bytes);
+        if (checkedOutBytes + idleBytes + entry.bytes > budget) {
+            mat.release();
+            evictions++;
+            return;
+        }
+
+        ArrayDeque<Mat> buffers = free.get(entry.key);
+        if (buffers == null) {
+            buffers = new ArrayDeque<>();
+            free.put(entry.key, buffers);
+        }
+        buffers.addLast(mat);
+        idle.put(mat, entry.key);
+        idleBytes += entry.bytes;
+    }
+
+    /**
+     * Sets the number of bytes the pool may hold, idle buffers are released to stay within it.
+     *
+     * @param bytes The budget in bytes
+     */
+    public static synchronized void setBudget(long bytes) {
+        budget = bytes;
+        evict(budget - checkedOutBytes);
+    }
+
+    /**
+     * Records the thread and caller of every acquire, shown in the leak reports.
+     * Costs a stack trace per acquire, so only meant for debugging.
+     */
+    public static synchronized void setTrackOwners(boolean track) {
+        trackOwners = track;
+    }
+
+    /**
+     * Releases all idle buffers. Checked out buffers are not affected.
+     */
+    public static synchronized void clear() {
+        evict(0);
+    }
+
+    /**
+     * Finds buffers that have been checked out for longer than expected.
+     *
+     * @param maxAgeMs Buffers checked out for longer than this are reported
+     * @return A description of every buffer checked out for too long
+     */
+    public static synchronized List<String> findLeaks(long maxAgeMs) {
+        List<String> leaks = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Mat, Entry> checked : checkedOut.entrySet()) {
+            Entry entry = checked.getValue();
+            long age = now - entry.acquired;
+            if (age >= maxAgeMs) {
+                Mat mat = checked.getKey();
+                leaks.add(mat.width() + "x" + mat.height() + " type " + mat.type() + ", "
+                        + entry.references + " references, checked out " + age + " ms ago by " + entry.owner);
+            }
+        }
+        return leaks;
+    }
+
+    /**
+     * Logs the buffers found by {@link #findLeaks(long)}.
+     *
+     * @return Number of buffers logged
+     */
+    public static synchronized int logLeaks(long maxAgeMs) {
+        List<String> leaks = findLeaks(maxAgeMs);
+        for (String leak : leaks) {
+            Log.w(TAG, "Buffer not released: " + leak);
+        }
+        return leaks.size();
+    }
+
+    /**
+     * @return Number of buffers currently checked out
+     */
+    public static synchronized int getCheckedOutCount() {
+        return checkedOut.size();
+    }
+
+    /**
+     * @return Number of idle buffers kept for reuse
+     */
+    public static synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return Bytes held by checked out and idle buffers
+     */
+    public static synchronized long getBytes() {
+        return checkedOutBytes + idleBytes;
+    }
+
+    /**
+     * @return Hits, misses and evictions of the pool, for logging
+     */
+    public static synchronized String stats() {
+        return "MatPool: checked out " + checkedOut.size() + " (" + checkedOutBytes + " bytes) idle "
+                + idle.size() + " (" + idleBytes + " bytes) hits " + hits + " misses " + misses
+                + " evictions " + evictions;
+    }
+
+    /**
+     * Releases the least recently used idle buffers until the idle buffers fit in the given bytes.
+     */
+    private static void evict(long maxIdleBytes) {
+        Iterator<Map.Entry<Mat, Long>> iterator = idle.entrySet().iterator();
+        while (idleBytes > Math.max(maxIdleBytes, 0) && iterator.hasNext()) {
+            Map.Entry<Mat, Long> oldest = iterator.next();
+            Mat mat = oldest.getKey();
+            iterator.remove();
+
+            ArrayDeque<Mat> buffers = free.get(oldest.getValue());
+            buffers.removeFirstOccurrence(mat);
+            if (buffers.isEmpty()) {
+                free.remove(oldest.getValue());
+            }
+            idleBytes -= bytes(mat);
+            mat.release();
+            evictions++;
+        }
+    }
+
+    /**
+     * Packs a size class into one key: 32 bits width, 20 bits height and 12 bits type.
+     */
+    private static long key(int width, int height, int type) {
+        return ((long) width << 32) | ((long) (height & 0xFFFFF) << 12) | (type & 0xFFF);
+    }
+
+    private static int roundUp(int size) {
+        return (size + REGION_GRID - 1) / REGION_GRID * REGION_GRID;
+    }
+
+    private static long bytes(Mat mat) {
+        return mat.total() * mat.elemSize();
+    }
+
+    private static String owner() {
+        String thread = Thread.currentThread().getName();
+        if (!trackOwners) {
+            return thread;
+        }
+        // The first caller outside the pool
+        StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+        for (StackTraceElement element : stack) {
+            if (!element.getClassName().equals(MatPool.class.getName())
+                    && !element.getClassName().equals(Thread.class.getName())
+                    && !element.getClassName().startsWith("dalvik.")) {
+                return thread + " at " + element;
+            }
+        }
+        return thread;
+    }
+}
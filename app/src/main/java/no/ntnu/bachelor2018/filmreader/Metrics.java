@@ -0,0 +1,315 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms and counters for the frame processing pipeline, shared by all threads.
+ * Stages are timed with:
+ * <pre>
+ *     long start = Metrics.start();
+ *     ...
+ *     Metrics.record(Metrics.Stage.WARP, start);
+ * </pre>
+ * {@link #snapshot()} gets the current values, {@link #startDump(File, String, long)}
+ * appends them to a file at a fixed interval so devices and builds can be compared.
+ */
+public class Metrics {
+
+    // Tag for this class
+    private static final String TAG = "Metrics";
+
+    /**
+     * The timed stages of processing one frame.
+     */
+    public enum Stage {
+        INGEST,         // Copying the camera image into a Mat
+        UNDISTORT,      // Lens undistortion
+        DETECT,         // Canny edges and contours to find the frame corners
+        WARP,           // Perspective warp with the rotation, and inversion
+        ROTATE,         // Orientation checks
+        QUALITY,        // Sharpness, border and exposure scoring before unboxing
+        STACK,          // Fusing the stacked still frames
+        UNBOX,          // Native unboxing, including the copy into the JNI array
+        UNBOX_EXTRACT,  // Tracking, sampling and quantizing the frame in the native unboxer
+        UNBOX_DECODE,   // Codec steps of the native unboxer, error correction included
+        BITMAP          // Conversion of the preview to a bitmap
+    }
+
+    /**
+     * The counted events.
+     */
+    public enum Counter {
+        RECEIVED,           // Frames received from the camera
+        DROPPED,            // Frames dropped before processing
+        QUAD_FOUND,         // Frames where the four frame corners were found
+        QUALITY_REJECTED,   // Frames not sent to unboxing because of a low quality score
+        DECODE_ATTEMPTS,    // Frames sent to the native unboxing
+        DECODE_SUCCESSES,   // Frames the native unboxing decoded
+        DECODE_CANCELLED    // Frames whose unboxing was aborted, e.g. when the camera stopped
+    }
+
+    private static final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+    private static final Map<Counter, AtomicLong> counters = new EnumMap<>(Counter.class);
+    private static ScheduledExecutorService dumper;     // Writes the periodic dump, null if stopped
+    private static File dumpFile;                       // File of the periodic dump
+
+    // Frame rate of the preview, updated at most once every RATE_INTERVAL_MS
+    private static final long RATE_INTERVAL_MS = 1000;
+    private static long rateTime;
+    private static long rateFrames;
+    private static double frameRate;
+
+    static {
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new LatencyHistogram());
+        }
+        for (Counter counter : Counter.values()) {
+            counters.put(counter, new AtomicLong());
+        }
+    }
+
+    /**
+     * @return The start time of a stage, to be passed to {@link #record(Stage, long)}
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time since start as the latency of a stage.
+     *
+     * @param stage The finished stage
+     * @param start The time from {@link #start()} when the stage started
+     */
+    public static void record(Stage stage, long start) {
+        histograms.get(stage).record(System.nanoTime() - start);
+    }
+
+    /**
+     * Records a latency measured elsewhere, e.g. by the native unboxer.
+     *
+     * @param stage The finished stage
+     * @param nanos The latency in nanoseconds
+     */
+    public static void recordNanos(Stage stage, long nanos) {
+        histograms.get(stage).record(nanos);
+    }
+
+    /**
+     * Adds one to a counter.
+     */
+    public static void count(Counter counter) {
+        counters.get(counter).incrementAndGet();
+    }
+
+    /**
+     * Clears all histograms and counters.
+     */
+    public static void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        for (AtomicLong counter : counters.values()) {
+            counter.set(0);
+        }
+    }
+
+    /**
+     * Gets the number of frames per second that finished {@link Stage#INGEST}.
+     * Averaged over at least one second, so it can be called for every frame.
+     *
+     * @return The frame rate, 0 until the first second has passed
+     */
+    public static synchronized double frameRate() {
+        long now = System.currentTimeMillis();
+        long frames = histograms.get(Stage.INGEST).getCount();
+        if (rateTime == 0) {
+            rateTime = now;
+            rateFrames = frames;
+        } else if (now - rateTime >= RATE_INTERVAL_MS) {
+            frameRate = (frames - rateFrames) * 1000.0 / (now - rateTime);
+            rateTime = now;
+            rateFrames = frames;
+        }
+        return frameRate;
+    }
+
+    /**
+     * @return The current latencies of all stages and the values of all counters
+     */
+    public static Snapshot snapshot() {
+        Map<Stage, LatencyHistogram.Snapshot> stages = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, histograms.get(stage).snapshot());
+        }
+        Map<Counter, Long> values = new EnumMap<>(Counter.class);
+        for (Counter counter : Counter.values()) {
+            values.put(counter, counters.get(counter).get());
+        }
+        return new Snapshot(System.currentTimeMillis(), stages, values);
+    }
+
+    /**
+     * Starts appending a snapshot to a file at a fixed interval. The file is written as CSV with
+     * one row per snapshot, a comment line with the label is written first to tell runs apart.
+     *
+     * @param file     The file to append to, created if missing
+     * @param label    Describes the run, e.g. the device and resolution
+     * @param periodMs Time between each snapshot
+     */
+    public static synchronized void startDump(final File file, String label, long periodMs) {
+        stopDump();
+        try {
+            boolean header = !file.exists() || file.length() == 0;
+            Writer writer = new FileWriter(file, true);
+            try {
+                if (header) {
+                    writer.write(Snapshot.csvHeader() + "\n");
+                }
+                writer.write("# " + label + "\n");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write metrics to " + file);
+            return;
+        }
+
+        dumpFile = file;
+        dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Metrics Dump Thread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        dumper.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                dump(file);
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic dump and writes a last snapshot.
+     */
+    public static synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+            dump(dumpFile);
+        }
+    }
+
+    /**
+     * Appends a snapshot to the file and logs it.
+     */
+    private static void dump(File file) {
+        Snapshot snapshot = snapshot();
+        Log.d(TAG, snapshot.toString());
+        try {
+            Writer writer = new FileWriter(file, true);
+            try {
+                writer.write(snapshot.toCsv() + "\n");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write metrics to " + file);
+        }
+    }
+
+    /**
+     * The latencies and counters at one point in time.
+     */
+    public static class Snapshot {
+        public final long time;     // Time of the snapshot in milliseconds since the epoch
+        private final Map<Stage, LatencyHistogram.Snapshot> stages;
+        private final Map<Counter, Long> counters;
+
+        Snapshot(long time, Map<Stage, LatencyHistogram.Snapshot> stages, Map<Counter, Long> counters) {
+            this.time = time;
+            this.stages = stages;
+            this.counters = counters;
+        }
+
+        /**
+         * @return The latencies of a stage
+         */
+        public LatencyHistogram.Snapshot get(Stage stage) {
+            return stages.get(stage);
+        }
+
+        /**
+         * @return The value of a counter
+         */
+        public long get(Counter counter) {
+            return counters.get(counter);
+        }
+
+        /**
+         * @return The column names matching {@link #toCsv()}, latencies are in microseconds
+         */
+        public static String csvHeader() {
+            StringBuilder builder = new StringBuilder("time");
+            for (Stage stage : Stage.values()) {
+                String name = stage.name().toLowerCase(Locale.US);
+                builder.append(',').append(name).append("_count")
+                        .append(',').append(name).append("_p50")
+                        .append(',').append(name).append("_p95")
+                        .append(',').append(name).append("_p99")
+                        .append(',').append(name).append("_max");
+            }
+            for (Counter counter : Counter.values()) {
+                builder.append(',').append(counter.name().toLowerCase(Locale.US));
+            }
+            return builder.toString();
+        }
+
+        /**
+         * @return The snapshot as one CSV row, latencies are in microseconds
+         */
+        public String toCsv() {
+            StringBuilder builder = new StringBuilder().append(time);
+            for (Stage stage : Stage.values()) {
+                LatencyHistogram.Snapshot latency = stages.get(stage);
+                builder.append(',').append(latency.count)
+                        .append(',').append(latency.p50 / 1000)
+                        .append(',').append(latency.p95 / 1000)
+                        .append(',').append(latency.p99 / 1000)
+                        .append(',').append(latency.max / 1000);
+            }
+            for (Counter counter : Counter.values()) {
+                builder.append(',').append(counters.get(counter));
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (Stage stage : Stage.values()) {
+                builder.append(stage).append(": ").append(stages.get(stage)).append('\n');
+            }
+            for (Counter counter : Counter.values()) {
+                builder.append(counter).append(": ").append(counters.get(counter)).append('\n');
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import no.ntnu.bachelor2018.previewImageProcessing.GeneralImgproc;
+
+/**
+ * Immutable snapshot of the preferences used while processing frames.
+ * The snapshot is rebuilt when a preference changes and published through a volatile reference,
+ * so the per frame code reads plain fields instead of SharedPreferences.
+ */
+public final class PipelineConfig {
+
+    // Tag for this class
+    private static final String TAG = "PipelineConfig";
+
+    // Default values, also used when running without the app (e.g. in the benchmarks)
+    private static final int DEFAULT_PREVIEW_TYPE = 4;
+    private static final int DEFAULT_CALIB_CORNERS = 15;
+    private static final int DEFAULT_CALIB_BOARDS = 20;
+    private static final int DEFAULT_DETECT_SCALE = 1;
+    private static final int DEFAULT_STACK_FRAMES = 1;
+    public static final PipelineConfig DEFAULTS = new PipelineConfig(
+            GeneralImgproc.PreviewType.values()[DEFAULT_PREVIEW_TYPE], true, true,
+            DEFAULT_CALIB_CORNERS, DEFAULT_CALIB_BOARDS, DEFAULT_DETECT_SCALE, false,
+            DEFAULT_STACK_FRAMES, false, false);
+
+    private static volatile PipelineConfig current = DEFAULTS;
+    // Kept here as SharedPreferences only holds a weak reference to its listeners
+    private static SharedPreferences.OnSharedPreferenceChangeListener listener;
+
+    public final GeneralImgproc.PreviewType previewType;  // Image shown in the preview (prev_type)
+    public final boolean calibrate;         // Calibrate and undistort frames (pref_cal)
+    public final boolean saveProcessed;     // Save the decoded frame to the gallery (pref_save)
+    public final int calibCorners;          // Inner corners per side of the calibration pattern (calib_size)
+    public final int calibBoards;           // Pattern images needed to calibrate (calib_num)
+    public final int detectScale;           // Frame detection runs at 1/detectScale resolution, 1, 2 or 4 (detect_scale)
+    public final boolean trackFrame;        // Only search around the last found frame (pref_track)
+    public final int stackFrames;           // Still frames fused before unboxing, 1 to not stack (stack_frames)
+    public final boolean stackMedian;       // Fuse with the median instead of the mean (stack_median)
+    public final boolean fusedWarp;         // Only undistort the found frame, while warping it (pref_fused_warp)
+
+    public PipelineConfig(GeneralImgproc.PreviewType previewType, boolean calibrate, boolean saveProcessed,
+                          int calibCorners, int calibBoards, int detectScale, boolean trackFrame,
+                          int stackFrames, boolean stackMedian, boolean fusedWarp) {
+        this.previewType = previewType;
+        this.calibrate = calibrate;
+        this.saveProcessed = saveProcessed;
+        this.calibCorners = calibCorners;
+        this.calibBoards = calibBoards;
+        this.detectScale = detectScale;
+        this.trackFrame = trackFrame;
+        this.stackFrames = stackFrames;
+        this.stackMedian = stackMedian;
+        this.fusedWarp = fusedWarp;
+    }
+
+    /**
+     * @return The current configuration, never null
+     */
+    public static PipelineConfig get() {
+        return current;
+    }
+
+    /**
+     * Replaces the current configuration, e.g. to run the processing with other settings.
+     *
+     * @param config The new configuration
+     */
+    public static void set(PipelineConfig config) {
+        current = config;
+    }
+
+    /**
+     * Reads the preferences and keeps the configuration up to date when they change.
+     *
+     * @param context Any context of the app
+     */
+    public static synchronized void register(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (listener == null) {
+            listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+                    current = fromPreferences(preferences);
+                }
+            };
+            prefs.registerOnSharedPreferenceChangeListener(listener);
+        }
+        current = fromPreferences(prefs);
+    }
+
+    /**
+     * Creates a configuration from the stored preferences, invalid values are replaced by the defaults.
+     *
+     * @param prefs The preferences to read
+     * @return The new configuration
+     */
+    public static PipelineConfig fromPreferences(SharedPreferences prefs) {
+        GeneralImgproc.PreviewType[] types = GeneralImgproc.PreviewType.values();
+        int previewType = parseInt(prefs, "prev_type", DEFAULT_PREVIEW_TYPE);
+        if (previewType < 0 || previewType >= types.length) {
+            previewType = DEFAULT_PREVIEW_TYPE;
+        }
+        PipelineConfig config = new PipelineConfig(types[previewType],
+                prefs.getBoolean("pref_cal", DEFAULTS.calibrate),
+                prefs.getBoolean("pref_save", DEFAULTS.saveProcessed),
+                positive(parseInt(prefs, "calib_size", DEFAULT_CALIB_CORNERS), DEFAULT_CALIB_CORNERS),
+                positive(parseInt(prefs, "calib_num", DEFAULT_CALIB_BOARDS), DEFAULT_CALIB_BOARDS),
+                detectScale(parseInt(prefs, "detect_scale", DEFAULT_DETECT_SCALE)),
+                prefs.getBoolean("pref_track", DEFAULTS.trackFrame),
+                positive(parseInt(prefs, "stack_frames", DEFAULT_STACK_FRAMES), DEFAULT_STACK_FRAMES),
+                prefs.getBoolean("stack_median", DEFAULTS.stackMedian),
+                prefs.getBoolean("pref_fused_warp", DEFAULTS.fusedWarp));
+        Log.d(TAG, config.toString());
+        return config;
+    }
+
+    /**
+     * @param type The preview type to check
+     * @return True if the preview type is the selected one
+     */
+    public boolean isPreviewType(GeneralImgproc.PreviewType type) {
+        return previewType == type;
+    }
+
+    /**
+     * Reads a number stored as a string, empty and invalid values give the default.
+     */
+    private static int parseInt(SharedPreferences prefs, String key, int defValue) {
+        try {
+            return Integer.parseInt(prefs.getString(key, String.valueOf(defValue)));
+        } catch (NumberFormatException e) {
+            return defValue;
+        }
+    }
+
+    private static int positive(int value, int defValue) {
+        return value > 0 ? value : defValue;
+    }
+
+    /**
+     * Detection works on pyramid levels, so only 1, 2 and 4 are valid scales.
+     */
+    private static int detectScale(int value) {
+        return value == 1 || value == 2 || value == 4 ? value : DEFAULT_DETECT_SCALE;
+    }
+
+    @Override
+    public String toString() {
+        return "PipelineConfig: preview " + previewType + " calibrate " + calibrate + " save " + saveProcessed
+                + " calibration pattern " + calibCorners + " corners, " + calibBoards + " images"
+                + " detection scale 1/" + detectScale + " tracking " + trackFrame
+                + " stacking " + stackFrames + (stackMedian ? " median" : " mean")
+                + " fused warp " + fusedWarp;
+    }
+}
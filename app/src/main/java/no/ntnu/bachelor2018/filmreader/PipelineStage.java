@@ -0,0 +1,158 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of the frame processing pipeline, with its own threads and a bounded queue.
+ * Jobs submitted while the queue is full are rejected instead of piling up, so a slow stage
+ * never holds back the stages in front of it.
+ */
+public class PipelineStage {
+
+    // Tag for this class
+    private static final String TAG = "PipelineStage";
+
+    private final String name;                  // Name of the stage, used for threads and logging
+    private final ThreadPoolExecutor executor;  // Runs the jobs of this stage
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+
+    /**
+     * A job owning resources, e.g. pooled Mats, that are released by the job when it runs.
+     * Jobs still queued when the stage shuts down are discarded instead, so they can release them.
+     */
+    public interface Job extends Runnable {
+        /**
+         * Releases what the job owns without running it.
+         */
+        void discard();
+    }
+
+    /**
+     * Creates the stage and its threads.
+     *
+     * @param name      Name of the stage
+     * @param threads   Number of threads working on this stage
+     * @param queueSize Number of jobs that can wait for a free thread
+     */
+    public PipelineStage(final String name, int threads, int queueSize) {
+        this.name = name;
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + " Thread " + count.getAndIncrement());
+            }
+        });
+        // Start the threads now instead of on the first job
+        executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Queues a job on this stage.
+     *
+     * @param job The job to run
+     * @return true if the job was queued, false if the stage is full or shut down
+     */
+    public boolean submit(Runnable job) {
+        try {
+            executor.execute(new QueuedJob(job));
+            return true;
+        } catch (RejectedExecutionException e) {
+            dropped.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Checks if a new job would be accepted, used to avoid preparing work that would be dropped.
+     *
+     * @return true if the queue has room for another job
+     */
+    public boolean hasCapacity() {
+        return !executor.isShutdown() && executor.getQueue().remainingCapacity() > 0;
+    }
+
+    /**
+     * Stops the stage, jobs waiting in the queue are discarded.
+     */
+    public void shutdown() {
+        for (Runnable queued : executor.shutdownNow()) {
+            if (queued instanceof QueuedJob) {
+                ((QueuedJob) queued).discard();
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Number of jobs waiting for a free thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return Number of jobs currently running
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * A submitted job as queued on the executor, counted when it completes.
+     */
+    private class QueuedJob implements Runnable {
+        private final Runnable job;
+
+        QueuedJob(Runnable job) {
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            try {
+                job.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Job failed in stage " + name);
+                e.printStackTrace();
+            } finally {
+                completed.incrementAndGet();
+            }
+        }
+
+        void discard() {
+            dropped.incrementAndGet();
+            if (job instanceof Job) {
+                ((Job) job).discard();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + ": queued " + getQueueDepth() + " active " + getActiveCount()
+                + " completed " + getCompletedCount() + " dropped " + getDroppedCount();
+    }
+}
@@ -22,7 +22,6 @@ import android.view.View;
 import android.view.WindowManager;
 
 import filmreader.bacheloroppg.ntnu.no.filmreader.R;
-import no.ntnu.bachelor2018.previewImageProcessing.GeneralImgproc;
 
 /**
  * Activity for the preferences. New preferences are added in the xml file, or programatically if
@@ -47,16 +46,6 @@ public class Preferences extends AppCompatActivity {
                 .getString(key, defValue);
     }
 
-    /**
-     * Used in {@link GeneralImgproc} to check the currently selected preview type to a custom one
-     *
-     * @param type Returns the preview type selected as integer.
-     * @return True if the preview type is the selected one in preferences
-     */
-    public static boolean isPreviewType(GeneralImgproc.PreviewType type) {
-        return (Integer.parseInt(getPreferenceString("prev_type", "4")) == type.ordinal());
-    }
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -0,0 +1,194 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.view.View;
+import android.widget.ImageView;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Shows processed frames in an {@link ImageView} at the pixel size of the view instead of the
+ * camera resolution. Frames are downsampled into a small pool of reused bitmaps: one is shown,
+ * one waits for the UI thread and one is drawn. If every bitmap is in use the frame is not shown,
+ * so the preview never holds back processing.
+ */
+public class PreviewRenderer {
+
+    // Bitmaps in the pool
+    private static final int BUFFERS = 3;
+
+    private final Activity activity;
+    private final ImageView view;
+    private final Deque<Bitmap> free = new ArrayDeque<>(BUFFERS);  // Bitmaps ready to be drawn
+    private Bitmap shown;                   // Bitmap currently set on the view
+    private boolean released;               // Set by release(), bitmaps are recycled from then on
+    private volatile int viewWidth, viewHeight;
+
+    // Keeps the size of the view up to date, removed by release()
+    private final View.OnLayoutChangeListener layoutListener = new View.OnLayoutChangeListener() {
+        @Override
+        public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                                   int oldLeft, int oldTop, int oldRight, int oldBottom) {
+            viewWidth = right - left;
+            viewHeight = bottom - top;
+        }
+    };
+
+    /**
+     * Must be created on the UI thread.
+     *
+     * @param activity The activity of the view
+     * @param view     The view to show the frames in
+     */
+    public PreviewRenderer(Activity activity, ImageView view) {
+        this.activity = activity;
+        this.view = view;
+        for (int i = 0; i < BUFFERS; i++) {
+            free.add(Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888));
+        }
+
+        viewWidth = view.getWidth();
+        viewHeight = view.getHeight();
+        view.addOnLayoutChangeListener(layoutListener);
+    }
+
+    /**
+     * Stops following the size of the view, so the view does not keep this renderer, and
+     * recycles the bitmaps. The shown bitmap is removed from the view and recycled on the UI
+     * thread, bitmaps of frames still being rendered are recycled once they are done.
+     * Can be called from any thread.
+     */
+    public void release() {
+        synchronized (this) {
+            released = true;
+            for (Bitmap bitmap : free) {
+                bitmap.recycle();
+            }
+            free.clear();
+        }
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                view.removeOnLayoutChangeListener(layoutListener);
+                Bitmap last;
+                synchronized (PreviewRenderer.this) {
+                    last = shown;
+                    shown = null;
+                }
+                if (last != null) {
+                    view.setImageBitmap(null);
+                    last.recycle();
+                }
+            }
+        });
+    }
+
+    /**
+     * Downsamples a frame to the view size and shows it. Can be called from any thread,
+     * the frame is not changed and can be reused as soon as this returns. The lock is only
+     * held to take a bitmap from the pool, every call downsamples into its own pooled Mat.
+     *
+     * @param frame The processed frame to show
+     */
+    public void render(Mat frame) {
+        if (frame == null || frame.empty()) {
+            return;
+        }
+        long start = Metrics.start();
+        Bitmap target;
+        synchronized (this) {
+            target = released ? null : free.poll();
+        }
+        if (target == null) {
+            // The UI thread has not caught up, skip this frame
+            return;
+        }
+
+        Size size = previewSize(frame.width(), frame.height());
+        Mat scaled = null;
+        Mat source = frame;
+        try {
+            if (size.width != frame.width() || size.height != frame.height()) {
+                // The view size rarely changes, so the pool keeps handing out the same buffers
+                scaled = MatPool.acquire((int) size.width, (int) size.height, frame.type());
+                Imgproc.resize(frame, scaled, size, 0, 0, Imgproc.INTER_AREA);
+                source = scaled;
+            }
+
+            // Frames cropped by the processing change size, only then is the bitmap replaced
+            if (target.getWidth() != source.width() || target.getHeight() != source.height()) {
+                target.recycle();
+                target = Bitmap.createBitmap(source.width(), source.height(), Bitmap.Config.ARGB_8888);
+            }
+            Utils.matToBitmap(source, target);
+        } finally {
+            if (scaled != null) {
+                MatPool.release(scaled);
+            }
+        }
+        final Bitmap bitmap = target;
+        Metrics.record(Metrics.Stage.BITMAP, start);
+
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                show(bitmap);
+            }
+        });
+    }
+
+    /**
+     * Sets the bitmap on the view and returns the previous one to the pool. Runs on the UI thread.
+     */
+    private void show(Bitmap bitmap) {
+        Bitmap previous;
+        synchronized (this) {
+            if (released) {
+                bitmap.recycle();
+                return;
+            }
+            previous = shown;
+            shown = bitmap;
+        }
+        view.setImageBitmap(bitmap);
+        release(previous);
+    }
+
+    /**
+     * Returns a bitmap to the pool, or recycles it once the renderer is released.
+     */
+    private synchronized void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        if (released) {
+            bitmap.recycle();
+        } else {
+            free.add(bitmap);
+        }
+    }
+
+    /**
+     * Gets the largest size with the aspect ratio of the frame that fits in the view.
+     * Frames are never scaled up, and shown at full size until the view has been laid out.
+     */
+    private Size previewSize(int width, int height) {
+        int maxWidth = viewWidth;
+        int maxHeight = viewHeight;
+        if (maxWidth <= 0 || maxHeight <= 0) {
+            return new Size(width, height);
+        }
+        // The view is rotated, so its sides are compared with both sides of the frame
+        double scale = Math.min(1.0, Math.min(
+                (double) Math.max(maxWidth, maxHeight) / Math.max(width, height),
+                (double) Math.min(maxWidth, maxHeight) / Math.min(width, height)));
+        return new Size(Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)));
+    }
+}
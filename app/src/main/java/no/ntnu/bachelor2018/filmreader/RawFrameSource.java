@@ -0,0 +1,106 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Replays frames from a file of raw Y-plane dumps, stored one after the other
+ * with the same size and row stride as the camera delivered them.
+ */
+public class RawFrameSource extends ReplayFrameSource {
+
+    private final File file;
+    private final int width, height, rowStride;
+    private final byte[] buffer;        // One frame as stored in the file
+    private RandomAccessFile input;
+
+    /**
+     * @param file   File with the raw frames
+     * @param width  Width of the frames in pixels
+     * @param height Height of the frames in pixels
+     * @param fps    Frames per second to replay at, 0 to replay as fast as possible
+     * @param loop   True to start over at the end of the file
+     */
+    public RawFrameSource(File file, int width, int height, double fps, boolean loop) {
+        this(file, width, height, width, fps, loop);
+    }
+
+    /**
+     * @param file      File with the raw frames
+     * @param width     Width of the frames in pixels
+     * @param height    Height of the frames in pixels
+     * @param rowStride Bytes between the start of two rows in the file
+     * @param fps       Frames per second to replay at, 0 to replay as fast as possible
+     * @param loop      True to start over at the end of the file
+     */
+    public RawFrameSource(File file, int width, int height, int rowStride, double fps, boolean loop) {
+        super(fps, loop);
+        if (rowStride < width) {
+            throw new IllegalArgumentException("Row stride is smaller than the width");
+        }
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.rowStride = rowStride;
+        this.buffer = new byte[rowStride * height];
+    }
+
+    @Override
+    protected Mat nextFrame() throws IOException {
+        if (input == null) {
+            input = new RandomAccessFile(file, "r");
+        }
+        try {
+            input.readFully(buffer);
+        } catch (EOFException e) {
+            // A partial frame at the end of the file is ignored
+            return null;
+        }
+        return toMat(buffer, width, height, rowStride);
+    }
+
+    @Override
+    protected void rewind() throws IOException {
+        if (input != null) {
+            input.seek(0);
+        }
+    }
+
+    @Override
+    protected void close() {
+        if (input != null) {
+            try {
+                input.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            input = null;
+        }
+    }
+
+    /**
+     * Copies a raw frame into a new {@link Mat}, skipping row padding.
+     *
+     * @param data      The raw frame
+     * @param width     Width of the frame in pixels
+     * @param height    Height of the frame in pixels
+     * @param rowStride Bytes between the start of two rows in data
+     * @return A grayscale Mat with the frame
+     */
+    static Mat toMat(byte[] data, int width, int height, int rowStride) {
+        Mat frame = new Mat(height, width, CvType.CV_8UC1);
+        if (rowStride == width) {
+            frame.put(0, 0, data);
+        } else {
+            for (int row = 0; row < height; row++) {
+                frame.put(row, 0, data, row * rowStride, width);
+            }
+        }
+        return frame;
+    }
+}
@@ -1,18 +1,8 @@
 package no.ntnu.bachelor2018.filmreader;
 
-import android.app.Activity;
-import android.content.SharedPreferences;
-import android.graphics.Bitmap;
-import android.os.AsyncTask;
-import android.os.Looper;
-import android.preference.PreferenceManager;
-import android.support.annotation.UiThread;
-import android.widget.ProgressBar;
-
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 
-import java.lang.reflect.Executable;
 import java.util.List;
 
 import no.ntnu.bachelor2018.previewImageProcessing.Calibration;
@@ -27,20 +17,37 @@ import no.ntnu.bachelor2018.previewImageProcessing.Overlay;
  */
 public class Reader {
 
-    private static SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(MainActivity.context);
     private int width, height;
     private boolean toCalibrate;
     private FrameFinder finder;
     private FinalProcessing finalProc;
     private Mat processedImage;
     private Overlay overlay;
+    private FramePipeline pipeline;     // Stages for warping and decoding, null to run them inline
     //Outer frame corners and inner corners for marker finding mask
     private List<Point> corners;
 
     public Reader() {
-        toCalibrate = prefs.getBoolean("pref_cal", true);
+        this(null);
+    }
+
+    /**
+     * @param pipeline The pipeline found frames are handed to for warping and decoding.
+     *                 If null the whole frame is processed on the calling thread.
+     */
+    public Reader(FramePipeline pipeline) {
+        this(pipeline, PipelineConfig.get().calibrate);
+    }
+
+    /**
+     * @param pipeline    The pipeline found frames are handed to for warping and decoding.
+     *                    If null the whole frame is processed on the calling thread.
+     * @param toCalibrate True to calibrate and undistort frames before processing
+     */
+    public Reader(FramePipeline pipeline, boolean toCalibrate) {
+        this.pipeline = pipeline;
+        this.toCalibrate = toCalibrate;
         finder = new FrameFinder();
-        //newROI = null;
         overlay = new Overlay();
         finalProc = new FinalProcessing();
     }
@@ -67,22 +74,36 @@ public class Reader {
 
         // If the calibration preference is set to true (default)
 
-        //If calibration succeeded and we have an undistorted image
-        if (!toCalibrate || Calibration.calibration(inputImage)) {
+        //If calibration succeeded and we have an undistorted image.
+        //With the fused warp only the found frame is undistorted, while it is warped
+        boolean fusedWarp = toCalibrate && PipelineConfig.get().fusedWarp;
+        if (!toCalibrate || Calibration.calibration(inputImage, !fusedWarp)) {
             //Reset overlay
             overlay = new Overlay();
-            //setROI(inputImage);
 
             //Find corners
             corners = finder.cornerFinder(inputImage, overlay);
+            if (corners.size() == 4) {
+                Metrics.count(Metrics.Counter.QUAD_FOUND);
+            }
 
             //Final processing
-            processedImage = finalProc.finalizeImage(inputImage, corners, overlay);
+            if (pipeline == null) {
+                processedImage = finalProc.finalizeImage(inputImage, corners, fusedWarp, overlay);
+            } else if (corners.size() == 4) {
+                // Warping and decoding continue on their own stages
+                pipeline.submit(inputImage, corners, fusedWarp);
+                FinalProcessing.drawFrame(inputImage, corners);
+                processedImage = null;
+            } else {
+                finalProc.hideProgress();
+                processedImage = null;
+            }
 
             corners.clear();
 
             //Draw and return for viewing if selected and successful
-            if (processedImage != null && Preferences.isPreviewType(GeneralImgproc.PreviewType.PROCESSED)) {
+            if (processedImage != null && PipelineConfig.get().isPreviewType(GeneralImgproc.PreviewType.PROCESSED)) {
                 overlay.drawAndClear(processedImage);
                 return processedImage;
             }
@@ -0,0 +1,164 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+
+/**
+ * Base class for sources replaying recorded frames on their own thread, either at a fixed
+ * frame rate or as fast as the listener can take them. Does not depend on the camera or any
+ * activity, so the pipeline can be measured against a fixed set of frames.
+ */
+public abstract class ReplayFrameSource implements FrameSource {
+
+    private final double fps;           // Frames per second, 0 to replay as fast as possible
+    private final boolean loop;         // Start over when all frames are replayed
+    private Thread thread;
+    private volatile boolean running;
+    private volatile long frameCount;   // Frames delivered since start
+    private volatile long startTime, endTime;
+
+    /**
+     * @param fps  Frames per second to replay at, 0 or less to replay as fast as possible
+     * @param loop True to start over when all frames are replayed
+     */
+    protected ReplayFrameSource(double fps, boolean loop) {
+        this.fps = fps;
+        this.loop = loop;
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @return The next frame, or null when there are no more frames
+     * @throws IOException If the frame could not be read
+     */
+    protected abstract Mat nextFrame() throws IOException;
+
+    /**
+     * Goes back to the first frame.
+     *
+     * @throws IOException If the source could not be reopened
+     */
+    protected abstract void rewind() throws IOException;
+
+    /**
+     * Releases open files.
+     */
+    protected void close() {
+    }
+
+    @Override
+    public synchronized void start(final FrameListener listener) {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        frameCount = 0;
+        startTime = System.nanoTime();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay(listener);
+            }
+        }, "Replay Thread");
+        thread.start();
+    }
+
+    /**
+     * Stops the replay and waits for the replay thread to finish, so the source can be
+     * started again right away.
+     */
+    @Override
+    public void stop() {
+        Thread stopped;
+        synchronized (this) {
+            running = false;
+            stopped = thread;
+        }
+        if (stopped != null && stopped != Thread.currentThread()) {
+            stopped.interrupt();
+            try {
+                stopped.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits until all frames are replayed, or the source is stopped.
+     *
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void awaitEnd() throws InterruptedException {
+        Thread current;
+        synchronized (this) {
+            current = thread;
+        }
+        if (current != null) {
+            current.join();
+        }
+    }
+
+    /**
+     * @return Number of frames delivered to the listener
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return Average rate frames were delivered at since the start
+     */
+    public double getFramesPerSecond() {
+        long end = running ? System.nanoTime() : endTime;
+        long elapsed = end - startTime;
+        return elapsed <= 0 ? 0 : frameCount * 1e9 / elapsed;
+    }
+
+    private void replay(FrameListener listener) {
+        long interval = fps > 0 ? (long) (1e9 / fps) : 0;
+        long nextFrameTime = startTime;
+        try {
+            while (running) {
+                Mat frame = nextFrame();
+                if (frame == null) {
+                    if (!loop || frameCount == 0) {
+                        break;
+                    }
+                    rewind();
+                    continue;
+                }
+
+                // Wait for the next frame time when replaying at a fixed rate
+                if (interval > 0) {
+                    long wait = nextFrameTime - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                    nextFrameTime += interval;
+                }
+
+                try {
+                    listener.onFrame(frame);
+                } finally {
+                    frame.release();
+                }
+                frameCount++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            endTime = System.nanoTime();
+            close();
+            // Also when the frames ran out, so the source can be started again
+            synchronized (this) {
+                running = false;
+                thread = null;
+            }
+        }
+    }
+}
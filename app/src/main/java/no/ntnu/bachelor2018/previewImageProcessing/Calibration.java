@@ -1,14 +1,13 @@
 package no.ntnu.bachelor2018.previewImageProcessing;
 
 import android.content.ContextWrapper;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
 import android.util.Log;
 
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
 import org.opencv.core.Point;
@@ -21,43 +20,73 @@ import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
 
-import no.ntnu.bachelor2018.filmreader.ImageBufferManager;
 import no.ntnu.bachelor2018.filmreader.MainActivity;
+import no.ntnu.bachelor2018.filmreader.MatPool;
+import no.ntnu.bachelor2018.filmreader.PipelineConfig;
+import no.ntnu.bachelor2018.filmreader.Metrics;
 
 /**
  * Calibration class calibrates an image to correct for distortion that appears
- * when using an extra lens. The configuration is saved locally and is loaded upon start.
+ * when using an extra lens. The configuration is saved locally for every camera and resolution,
+ * see {@link CalibrationStore}, and is loaded upon start. The undistortion maps made from it are
+ * saved in the same directory, one file per camera and resolution, so they are only created once.
+ * Finding the calibration pattern and solving the calibration runs on a calibration thread,
+ * the frames only hand over copies and are never held back by it.
+ * Once calibrated, the frames are undistorted with a {@link CalibrationState} read without locking,
+ * the lock is only taken while calibrating or when the state has to be replaced.
  */
 public class Calibration {
 
     private static final String TAG = "Calibration";
     private static final int pictureDelayMS = 1000;
+    //Calibrations are saved in this file, the single calibration of older versions in the legacy file
+    private static final String CONFIG_FILE = "calibration.bin", LEGACY_CONFIG_FILE = "config.save";
+    private static final String DEFAULT_CAMERA = "0";
+    //The calibration pattern is searched for in a copy of the frame downscaled to at most this width
+    private static final int PATTERN_WIDTH = 640;
+    private static final TermCriteria PATTERN_CRITERIA = new TermCriteria(TermCriteria.EPS | TermCriteria.MAX_ITER, 30, 0.1);
+    //Undistortion maps are saved in the directory of the calibrations, one file per camera and resolution
+    private static final String MAPS_PREFIX = "maps_", LEGACY_MAPS_FILE = "maps_\\d+x\\d+\\.save";
+    private static final int MAPS_MAGIC = 0x5051554D;   // "PQUM"
+    private static final int MAPS_VERSION = 1;
+    private static final int MAPS_HEADER = 4 * 4 + 8;   // magic, version, width, height and checksum
+    //Fixed point maps, remap is faster with these than with float maps
+    private static final int MAP1_TYPE = CvType.CV_16SC2, MAP2_TYPE = CvType.CV_16UC1;
     private static int height, width;
+    private static String cameraId = DEFAULT_CAMERA;
     private static List<Mat> imagePoints;
     private static List<Mat> objectPoints;
     private static MatOfPoint3f obj;
-    private static MatOfPoint2f imageCorners;
     private static int boardsNumber;
     private static int numCornersHor;
     private static int numCornersVer;
     private static int successes;
     private static long pictureTakenTime;
-    private static Rect newROI;
     private static Mat intrinsic;
-    private static Mat newCameraMatrix;
     private static Mat distCoeffs;
-    private static Mat rectMap1, rectMap2;
-    private static SharedPreferences prefs;
     private static boolean isCalibrated;
+    private static volatile CalibrationState state; // Undistortion for the current frame size, null if not prepared
+    private static CalibrationState loadingMaps;    // State the maps are being loaded for, null if none
+    private static ExecutorService executor;    // Calibration thread, created on first use
+    private static int generation;              // Changed by init, results of older jobs are dropped
+    private static boolean detecting, solving;  // Pattern search or solve waiting on the calibration thread
+    private static MatOfPoint2f lastPattern;    // Last pattern found, shown for a while on the frames
+    private static long lastPatternTime;
 
     /**
      * Calibrates camera using the input image or undistorts the input image if calibrated.
@@ -67,16 +96,18 @@ public class Calibration {
     }
 
     private static synchronized void init() {
-        prefs = PreferenceManager.getDefaultSharedPreferences(MainActivity.context);
+        //Drop the results of jobs still running on the calibration thread
+        generation++;
+        detecting = false;
+        solving = false;
+        lastPattern = null;
+
         //Target points for the checkerboard corners used in calibration
         obj = new MatOfPoint3f();
 
         //Refined corner points from all the calibration images.
         imagePoints = new ArrayList<>();
 
-        //Corners refined by cornersubpix
-        imageCorners = new MatOfPoint2f();
-
         //List of target object points for all the frames(required by configuration)
         objectPoints = new ArrayList<>();
 
@@ -85,9 +116,8 @@ public class Calibration {
         Mat.eye(3, 3, CvType.CV_64FC1).copyTo(intrinsic);
         intrinsic.put(0, 0, 1.0);
 
-        newCameraMatrix = null;
-        rectMap1 = null;
-        rectMap2 = null;
+        //The frames stop undistorting until the state is prepared again
+        state = null;
 
         //Distance coefficients
         distCoeffs = new Mat();
@@ -95,31 +125,17 @@ public class Calibration {
         //Sucsessfully captured images for configuration
         successes = 0;
 
-        //Region of interest after undistortion
-        newROI = new Rect();
-
         //Counter for taking a new image
         pictureTakenTime = 0;
 
         isCalibrated = false;
 
+        PipelineConfig config = PipelineConfig.get();
         //Amount of internal corners in the checkerboard pattern
-        int defCornerValue = 15;
-        String tempNumCorners = prefs.getString("calib_size", String.valueOf(defCornerValue));
-        if (tempNumCorners.equals("") || tempNumCorners.equals("0")) {
-            numCornersHor = numCornersVer = defCornerValue;
-        } else {
-            numCornersHor = numCornersVer = Integer.valueOf(tempNumCorners);
-        }
+        numCornersHor = numCornersVer = config.calibCorners;
 
         //Number of pictures required to configure the camera. More pictures = better calibration
-        int defNumValue = 20;
-        String tempBoardsNumber = prefs.getString("calib_num", String.valueOf(defNumValue));
-        if (tempBoardsNumber.equals("") || tempBoardsNumber.equals("0")) {
-            boardsNumber = defNumValue;
-        } else {
-            boardsNumber = Integer.parseInt(tempBoardsNumber);
-        }
+        boardsNumber = config.calibBoards;
 
         int numSquares = numCornersHor * numCornersVer;
 
@@ -128,29 +144,66 @@ public class Calibration {
             obj.push_back(new MatOfPoint3f(new Point3(i / numCornersHor, i % numCornersVer, 0.0f)));
         }
 
-        try {
-            isCalibrated = loadConfig();
-        } catch (IOException e) {
-            e.printStackTrace();
-            Log.d(TAG, "init: Failed to load config");
-        }
+        isCalibrated = loadConfig();
     }
 
     /**
      * Used to adjust image size dependent variables.
      *
-     * @param image The image to recalibrate the size of
-     */
-    private static void calibSize(Mat image) {
-        if (image.width() != width || image.height() != height) {
-            // If the resolution was zero, do not delete the saved calibration.
-            boolean firstFrame = (width == 0 && height == 0);
-            width = image.width();
-            height = image.height();
-            if(!firstFrame){
-                deleteCalibration();
+     * @param imageWidth  Width of the frames to calibrate
+     * @param imageHeight Height of the frames to calibrate
+     */
+    private static void calibSize(int imageWidth, int imageHeight) {
+        if (imageWidth != width || imageHeight != height) {
+            width = imageWidth;
+            height = imageHeight;
+            // Load the calibration saved for the new resolution, if any
+            init();
+        }
+    }
+
+    /**
+     * Sets the camera the frames come from, every camera has its own calibrations.
+     * The calibration is loaded again on the next frame if the camera changed.
+     *
+     * @param id Id of the camera device
+     */
+    public static synchronized void setCamera(String id) {
+        if (!id.equals(cameraId)) {
+            cameraId = id;
+            objectPoints = null;
+            state = null;
+        }
+    }
+
+    /**
+     * Loads the calibration and the undistortion maps for a resolution before the first frame,
+     * so undistorting the first frame does not wait for the maps to be loaded or created.
+     * The maps are loaded without the lock held, the frames are not blocked meanwhile.
+     *
+     * @param frameWidth  Width of the camera frames
+     * @param frameHeight Height of the camera frames
+     */
+    public static void prepare(int frameWidth, int frameHeight) {
+        CalibrationState current;
+        File file;
+        synchronized (Calibration.class) {
+            calibSize(frameWidth, frameHeight);
+            if (objectPoints == null || imagePoints == null) {
+                init();
+            }
+            if (!isCalibrated) {
+                return;
             }
+            current = prepareState();
+            //If only the found frames are undistorted, the maps are not needed
+            if (PipelineConfig.get().fusedWarp || current.hasMaps() || current == loadingMaps) {
+                return;
+            }
+            loadingMaps = current;
+            file = mapsFile(width, height);
         }
+        prepareMaps(current, file);
     }
 
 
@@ -163,8 +216,40 @@ public class Calibration {
      * @param inputFrame The input {@link Mat} to calibrate
      * @return True if the calibration is set, false otherwise
      */
-    public static synchronized boolean calibration(Mat inputFrame) {
-        calibSize(inputFrame);
+    public static boolean calibration(Mat inputFrame) {
+        return calibration(inputFrame, true);
+    }
+
+    /**
+     * Calibrates camera or undistorts image using input frame, see {@link #calibration(Mat)}
+     *
+     * @param inputFrame     The input {@link Mat} to calibrate
+     * @param undistortFrame False to leave the frame distorted when calibrated, only the found
+     *                       frame is then undistorted with {@link #createWarpMaps(Mat, Point, Mat, Mat)}
+     * @return True if the calibration is set, false otherwise or while the maps are loading
+     */
+    public static boolean calibration(Mat inputFrame, boolean undistortFrame) {
+        // Calibrated and prepared for this frame size, no lock needed
+        CalibrationState current = state;
+        if (current != null && current.matches(inputFrame.width(), inputFrame.height())
+                && (!undistortFrame || current.hasMaps())) {
+            if (undistortFrame) {
+                long start = Metrics.start();
+                undistort(inputFrame, current.map1, current.map2);
+                Metrics.record(Metrics.Stage.UNDISTORT, start);
+            }
+            return true;
+        }
+        return calibrate(inputFrame, undistortFrame);
+    }
+
+    /**
+     * Calibrates camera using the input frame, or prepares the state and undistorts the frame
+     * if calibrated. Only reached while the state for the frames is missing. Missing maps are
+     * loaded on the calibration thread, the frames are skipped until they are published.
+     */
+    private static synchronized boolean calibrate(Mat inputFrame, boolean undistortFrame) {
+        calibSize(inputFrame.width(), inputFrame.height());
 
         // Initialize variables if not already done.
         if (objectPoints == null || imagePoints == null) {
@@ -173,182 +258,600 @@ public class Calibration {
 
         // Undistort image if the camera is already calibrated
         if (isCalibrated) {
-            //Get buffer
-            Mat undistorted = new Mat(width,height,CvType.CV_8UC1);
-
-            if (newCameraMatrix == null) {
-                //Rectification maps for saving undistortion transformation
-                newCameraMatrix = Calib3d.getOptimalNewCameraMatrix(intrinsic, distCoeffs, inputFrame.size(), 0, inputFrame.size(), newROI, false);
-
-                //Initialize undistortion mapping. Better then undistort as it only maps once.
-                Log.d(TAG, "Camera matrix configured");
+            final CalibrationState current = prepareState();
+            if (undistortFrame && !current.hasMaps()) {
+                if (current != loadingMaps) {
+                    loadingMaps = current;
+                    final File file = mapsFile(width, height);
+                    executor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            prepareMaps(current, file);
+                        }
+                    });
+                }
+                return false;
             }
-            if (rectMap1 == null || rectMap2 == null) {
-                rectMap1 = new Mat(width, height, CvType.CV_32FC2);
-                rectMap2 = new Mat(width, height, CvType.CV_32FC1);
-                Imgproc.initUndistortRectifyMap(intrinsic, distCoeffs, new Mat(), newCameraMatrix, new Size(width, height), CvType.CV_32FC(1), rectMap1, rectMap2);
+            if (undistortFrame) {
+                long start = Metrics.start();
+                undistort(inputFrame, current.map1, current.map2);
+                Metrics.record(Metrics.Stage.UNDISTORT, start);
             }
-            //undistorter.undistort(inputFrame);
-            Imgproc.remap(inputFrame, undistorted, rectMap1, rectMap2, Imgproc.INTER_LINEAR);
-
-            //Copy undistorted image to return and set unused.
-            undistorted.copyTo(inputFrame);
-            undistorted.release();
-            undistorted = null;
-
 
             return true;
         }
 
-        // Take picture for calibration if timer has passed and not done.
-        else if (successes < boardsNumber &&
-                (System.currentTimeMillis() - pictureTakenTime) > pictureDelayMS) {
-            Size boardSize = new Size(numCornersHor, numCornersVer);
-            boolean found = Calib3d.findChessboardCorners(inputFrame, boardSize, imageCorners,
-                    Calib3d.CALIB_CB_FAST_CHECK);
+        // Search a copy of the frame for the pattern if the timer has passed and not done.
+        else if (successes < boardsNumber) {
+            if (!detecting && (System.currentTimeMillis() - pictureTakenTime) > pictureDelayMS) {
+                pictureTakenTime = System.currentTimeMillis();
+                detecting = true;
+                final Mat copy = MatPool.acquire(inputFrame.width(), inputFrame.height(), inputFrame.type());
+                inputFrame.copyTo(copy);
+                final Size boardSize = new Size(numCornersHor, numCornersVer);
+                final int jobGeneration = generation;
+                executor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        findPattern(copy, boardSize, jobGeneration);
+                    }
+                });
+            }
+        }
 
-            pictureTakenTime = System.currentTimeMillis();
+        // If we have enough pictures to calibrate with, we solve the config and save it
+        else if (!solving) {
+            solving = true;
+            final List<Mat> objects = new ArrayList<>(objectPoints);
+            final List<Mat> images = new ArrayList<>(imagePoints);
+            final int jobGeneration = generation;
+            final int solveWidth = width, solveHeight = height;
+            executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    solve(objects, images, solveWidth, solveHeight, jobGeneration);
+                }
+            });
+        }
 
-            if (found) {
-                //Refine the corners with sub-pixel accuracy for better calibration.
-                TermCriteria term = new TermCriteria(TermCriteria.EPS | TermCriteria.MAX_ITER, 30, 0.1);
-                Imgproc.cornerSubPix(inputFrame, imageCorners, new Size(11, 11), new Size(-1, -1), term);
+        drawProgress(inputFrame);
+        return false;
+    }
 
-                //Draw chessboard corners
-                Calib3d.drawChessboardCorners(inputFrame, boardSize, imageCorners, found);
+    /**
+     * Draws the calibration progress and the last found pattern onto the frame.
+     */
+    private static void drawProgress(Mat inputFrame) {
+        if (lastPattern != null && System.currentTimeMillis() - lastPatternTime < pictureDelayMS) {
+            Calib3d.drawChessboardCorners(inputFrame, new Size(numCornersHor, numCornersVer), lastPattern, true);
+        }
+        String text = solving ? "Calibrating..." : "Not calibrated: " + successes + "/" + boardsNumber;
+        Imgproc.putText(inputFrame, text, new Point(100, 100), Core.FONT_HERSHEY_PLAIN, 5, new Scalar(255, 0, 0), 10);
+    }
 
-                //Add image corners and target grid to list
-                imagePoints.add(imageCorners);
-                objectPoints.add(obj);
+    /**
+     * Searches a frame for the calibration pattern. Runs on the calibration thread.
+     * The pattern is found on a downscaled copy, the corners are then refined on the whole frame.
+     *
+     * @param frame         Copy of the frame, checked out from {@link MatPool} and released here
+     * @param boardSize     Inner corners of the pattern
+     * @param jobGeneration The generation the search was started in
+     */
+    private static void findPattern(Mat frame, Size boardSize, int jobGeneration) {
+        MatOfPoint2f corners = new MatOfPoint2f();
+        boolean found = false;
+        try {
+            int scale = Math.max(1, (frame.width() + PATTERN_WIDTH - 1) / PATTERN_WIDTH);
+            Mat small = frame;
+            if (scale > 1) {
+                small = MatPool.acquire(frame.width() / scale, frame.height() / scale, frame.type());
+                Imgproc.resize(frame, small, small.size(), 0, 0, Imgproc.INTER_AREA);
+            }
+            found = Calib3d.findChessboardCorners(small, boardSize, corners, Calib3d.CALIB_CB_FAST_CHECK);
+
+            if (found && small != frame) {
+                //Move the corners back to the whole frame
+                double scaleX = (double) frame.width() / small.width();
+                double scaleY = (double) frame.height() / small.height();
+                Point points[] = corners.toArray();
+                for (Point pt : points) {
+                    pt.x = (pt.x + 0.5) * scaleX - 0.5;
+                    pt.y = (pt.y + 0.5) * scaleY - 0.5;
+                }
+                corners.fromArray(points);
+            }
+            if (small != frame) {
+                MatPool.release(small);
+            }
 
-                imageCorners = new MatOfPoint2f();
-                successes++;
+            if (found) {
+                //Refine the corners with sub-pixel accuracy for better calibration.
+                int window = Math.max(11, 2 * scale);
+                Imgproc.cornerSubPix(frame, corners, new Size(window, window), new Size(-1, -1), PATTERN_CRITERIA);
             }
+        } finally {
+            MatPool.release(frame);
+            addPattern(found ? corners : null, jobGeneration);
+        }
+    }
+
+    /**
+     * Adds the corners of a found pattern to the calibration images.
+     *
+     * @param corners       The refined corners, null if the pattern was not found
+     * @param jobGeneration The generation the search was started in
+     */
+    private static synchronized void addPattern(MatOfPoint2f corners, int jobGeneration) {
+        if (jobGeneration != generation) {
+            return;
+        }
+        detecting = false;
+        if (corners != null && successes < boardsNumber) {
+            //Add image corners and target grid to list
+            imagePoints.add(corners);
+            objectPoints.add(obj);
+            successes++;
+            lastPattern = corners;
+            lastPatternTime = System.currentTimeMillis();
+            Log.d(TAG, "Calibration pattern found: " + successes + "/" + boardsNumber);
         }
+    }
+
+    /**
+     * Solves the calibration and prepares the undistortion for the frames. Runs on the calibration thread.
+     *
+     * @param objects       Target grid of every calibration image
+     * @param images        Pattern corners of every calibration image
+     * @param solveWidth    Width of the frames
+     * @param solveHeight   Height of the frames
+     * @param jobGeneration The generation the solve was started in
+     */
+    private static void solve(List<Mat> objects, List<Mat> images, int solveWidth, int solveHeight, int jobGeneration) {
+        long start = System.currentTimeMillis();
+        Log.d(TAG, "Solving calibration from " + images.size() + " images");
+        try {
+            Size size = new Size(solveWidth, solveHeight);
+            //Camera matrix with initial values
+            Mat cameraMatrix = Mat.eye(3, 3, CvType.CV_64FC1);
+            cameraMatrix.put(0, 0, 1.0);
+            Mat coeffs = new Mat();
 
-        // If we have enough pictures to calibrate with, we apply the config and save it
-        else if (!isCalibrated && successes >= boardsNumber) {
             //Not used. Contains radial and tangential deviation in each sample.
             //Required by calibrateCamera.
             List<Mat> rvecs = new ArrayList<>();
             List<Mat> tvecs = new ArrayList<>();
+            Calib3d.calibrateCamera(objects, images, size, cameraMatrix, coeffs, rvecs, tvecs);
+
+            //Get new camera matrix and the maps, so the frames can undistort right away
+            Rect roi = new Rect();
+            Mat newCamera = Calib3d.getOptimalNewCameraMatrix(cameraMatrix, coeffs, size, 0, size, roi, false);
+            Mat[] maps = null;
+            if (!PipelineConfig.get().fusedWarp) {
+                maps = loadOrCreateMaps(mapsFile(solveWidth, solveHeight), cameraMatrix, coeffs, newCamera,
+                        solveWidth, solveHeight);
+            }
+            publishCalibration(cameraMatrix, coeffs, newCamera, roi, maps, jobGeneration);
+            Log.d(TAG, "Calibration solved in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to solve calibration: " + e);
+            synchronized (Calibration.class) {
+                if (jobGeneration == generation) {
+                    solving = false;
+                }
+            }
+        }
+    }
 
-            Calib3d.calibrateCamera(objectPoints, imagePoints, inputFrame.size(), intrinsic, distCoeffs, rvecs, tvecs);
+    /**
+     * Makes a solved calibration the current one and saves it, the frames see all of it at once.
+     */
+    private static synchronized void publishCalibration(Mat cameraMatrix, Mat coeffs, Mat newCamera, Rect roi,
+                                                        Mat[] maps, int jobGeneration) {
+        if (jobGeneration != generation) {
+            return;
+        }
+        intrinsic = cameraMatrix;
+        distCoeffs = coeffs;
+        state = new CalibrationState(width, height, cameraMatrix, coeffs, newCamera, roi, maps);
+        isCalibrated = true;
+        solving = false;
+        lastPattern = null;
+        try {
+            saveConfig();
+        } catch (IOException e) {
+            Log.d(TAG, "calibration: WARNING. Failed to save calibration.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The calibration thread
+     */
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Calibration Thread");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Replaces the state if it is missing or for another resolution, the new state has no
+     * undistortion maps yet. Called with the lock held.
+     *
+     * @return The state for the current resolution
+     */
+    private static CalibrationState prepareState() {
+        CalibrationState current = state;
+        if (current == null || !current.matches(width, height)) {
+            Size size = new Size(width, height);
+            Rect roi = new Rect();
+            Mat newCamera = Calib3d.getOptimalNewCameraMatrix(intrinsic, distCoeffs, size, 0, size, roi, false);
+            current = new CalibrationState(width, height, intrinsic, distCoeffs, newCamera, roi, null);
+            state = current;
+            Log.d(TAG, "Camera matrix configured");
+        }
+        return current;
+    }
+
+    /**
+     * Loads the undistortion maps of a state from the file saved for its resolution and
+     * calibration, or creates and saves them, and publishes the state with the maps. Runs
+     * without the lock held, so the frames and the calibration are not blocked meanwhile.
+     * The caller sets {@link #loadingMaps} to the state with the lock held, so only one thread
+     * loads its maps. The maps are dropped if the state was replaced while they were loaded.
+     *
+     * @param current The state to load the maps for
+     * @param file    The maps file of the state
+     */
+    private static void prepareMaps(CalibrationState current, File file) {
+        Mat[] maps = null;
+        try {
+            maps = loadOrCreateMaps(file, current.cameraMatrix, current.distCoeffs, current.newCameraMatrix,
+                    current.width, current.height);
+        } finally {
+            synchronized (Calibration.class) {
+                if (loadingMaps == current) {
+                    loadingMaps = null;
+                }
+                if (maps != null && state == current) {
+                    state = current.withMaps(maps);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the undistortion maps saved for a resolution and calibration, or creates and saves them.
+     */
+    private static Mat[] loadOrCreateMaps(File file, Mat cameraMatrix, Mat coeffs, Mat newCamera,
+                                          int mapWidth, int mapHeight) {
+        long checksum = checksum(cameraMatrix, coeffs, newCamera);
+        Mat[] maps = loadMaps(file, checksum, mapWidth, mapHeight);
+        if (maps == null) {
+            //Initialize undistortion mapping. Better then undistort as it only maps once.
+            maps = createUndistortMaps(cameraMatrix, coeffs, newCamera, new Size(mapWidth, mapHeight));
             try {
-                saveConfig();
+                saveMaps(file, checksum, maps);
             } catch (IOException e) {
-                Log.d(TAG, "calibration: WARNING. Failed to save calibration.");
+                Log.d(TAG, "Failed to save undistortion maps");
                 e.printStackTrace();
             }
+        }
+        return maps;
+    }
+
+    /**
+     * Creates the fixed point maps used to undistort frames with {@link #undistort(Mat, Mat, Mat)}
+     *
+     * @param cameraMatrix    The calibrated camera matrix
+     * @param distCoeffs      The calibrated distortion coefficients
+     * @param newCameraMatrix The camera matrix of the undistorted frames
+     * @param size            The size of the frames
+     * @return The two undistortion maps
+     */
+    public static Mat[] createUndistortMaps(Mat cameraMatrix, Mat distCoeffs, Mat newCameraMatrix, Size size) {
+        return createUndistortMaps(cameraMatrix, distCoeffs, newCameraMatrix, size, true);
+    }
 
-            //Get new camera matrix
-            newCameraMatrix = Calib3d.getOptimalNewCameraMatrix(intrinsic, distCoeffs, inputFrame.size(), 0, inputFrame.size(), newROI, false);
-            isCalibrated = true;
-        } else if (!isCalibrated) {
-            Imgproc.putText(inputFrame, "Not calibrated: " + successes + "/" + boardsNumber, new Point(100, 100), Core.FONT_HERSHEY_PLAIN, 5, new Scalar(255, 0, 0), 10);
+    /**
+     * Creates the maps used to undistort frames with {@link #undistort(Mat, Mat, Mat)}
+     *
+     * @param fixedPoint True for fixed point maps (CV_16SC2 and CV_16UC1), false for float maps
+     *                   (CV_32FC2 and CV_32FC1)
+     * @return The two undistortion maps
+     */
+    public static Mat[] createUndistortMaps(Mat cameraMatrix, Mat distCoeffs, Mat newCameraMatrix, Size size, boolean fixedPoint) {
+        int type1 = fixedPoint ? MAP1_TYPE : CvType.CV_32FC2;
+        int type2 = fixedPoint ? MAP2_TYPE : CvType.CV_32FC1;
+        Mat map1 = new Mat((int) size.height, (int) size.width, type1);
+        Mat map2 = new Mat((int) size.height, (int) size.width, type2);
+        Imgproc.initUndistortRectifyMap(cameraMatrix, distCoeffs, new Mat(), newCameraMatrix, size, type1, map1, map2);
+        return new Mat[]{map1, map2};
+    }
+
+    /**
+     * Moves points from the camera frame to the undistorted frame.
+     *
+     * @param pts    Points in an area of the camera frame
+     * @param origin Position of the area in the camera frame
+     * @return The points in the undistorted camera frame, or null if the camera is not calibrated
+     */
+    public static List<Point> undistortPoints(List<Point> pts, Point origin) {
+        CalibrationState current = state;
+        if (current == null) {
+            return null;
+        }
+        Point framePts[] = new Point[pts.size()];
+        for (int i = 0; i < framePts.length; i++) {
+            framePts[i] = new Point(pts.get(i).x + origin.x, pts.get(i).y + origin.y);
         }
+        MatOfPoint2f distorted = new MatOfPoint2f(framePts);
+        MatOfPoint2f undistorted = new MatOfPoint2f();
+        Imgproc.undistortPoints(distorted, undistorted, current.cameraMatrix, current.distCoeffs, new Mat(),
+                current.newCameraMatrix);
+        List<Point> result = undistorted.toList();
+        distorted.release();
+        undistorted.release();
+        return result;
+    }
 
-        return false;
+    /**
+     * Moves points from the undistorted frame to the camera frame, the inverse of
+     * {@link #undistortPoints(List, Point)}
+     *
+     * @param pts    Points in the undistorted camera frame
+     * @param origin Position of an area in the camera frame
+     * @return The points in the area of the camera frame, or null if the camera is not calibrated
+     */
+    public static MatOfPoint2f distortPoints(MatOfPoint2f pts, Point origin) {
+        CalibrationState current = state;
+        if (current == null) {
+            return null;
+        }
+        //Back to normalized camera coordinates, then projected through the lens distortion
+        double camera[] = new double[9];
+        current.newCameraMatrix.get(0, 0, camera);
+        Point undistorted[] = pts.toArray();
+        Point3 normalized[] = new Point3[undistorted.length];
+        for (int i = 0; i < normalized.length; i++) {
+            normalized[i] = new Point3((undistorted[i].x - camera[2]) / camera[0],
+                    (undistorted[i].y - camera[5]) / camera[4], 1);
+        }
+        MatOfPoint3f objects = new MatOfPoint3f(normalized);
+        MatOfDouble coeffs = new MatOfDouble(current.distCoeffs);
+        Mat zero = Mat.zeros(3, 1, CvType.CV_64F);
+        MatOfPoint2f distorted = new MatOfPoint2f();
+        Calib3d.projectPoints(objects, zero, zero, current.cameraMatrix, coeffs, distorted);
+        objects.release();
+        zero.release();
+
+        Point result[] = distorted.toArray();
+        for (Point pt : result) {
+            pt.x -= origin.x;
+            pt.y -= origin.y;
+        }
+        distorted.fromArray(result);
+        return distorted;
     }
 
     /**
-     * Loads the configuration files if exists
+     * Creates maps that undistort an area of the camera frame and transform it with a perspective
+     * transform in one remap. Only the pixels of the output are mapped.
      *
-     * @return True on success, false otherwise
+     * @param homography Perspective transform from the undistorted camera frame to the output
+     * @param origin     Position of the remapped area in the camera frame
+     * @param map1       Fixed point map (CV_16SC2) the size of the output
+     * @param map2       Interpolation map (CV_16UC1) the size of the output
+     * @return True if the maps were created, false if the camera is not calibrated
      */
-    private static synchronized boolean loadConfig() throws IOException {
-        FileInputStream fstream = null;
-        ObjectInputStream ostream = null;
-        try {
-            // Open the streams
-            fstream = new FileInputStream(configFile());
-            ostream = new ObjectInputStream(fstream);
-
-            // Read the streams, convert the arrays to Mat object and set the config variables
-            intrinsic = arrayToMat((double[][]) ostream.readObject());
-            distCoeffs = arrayToMat((double[][]) ostream.readObject());
-        } catch (FileNotFoundException e) {
-            Log.d(TAG, "Could not find config");
-            return false;
-        } catch (IOException e) {
-            e.printStackTrace();
+    public static boolean createWarpMaps(Mat homography, Point origin, Mat map1, Mat map2) {
+        CalibrationState current = state;
+        if (current == null) {
             return false;
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-            return false;
-        } finally {
-            if(fstream != null)
-                fstream.close();
-            if(ostream != null)
-                ostream.close();
         }
-
+        //For every output pixel the camera frame position is found by undoing the homography and
+        //the new camera matrix, then applying the lens distortion. initUndistortRectifyMap does
+        //exactly this when given homography * newCameraMatrix as the new camera matrix.
+        Mat combined = new Mat();
+        Mat homography64 = new Mat();
+        homography.convertTo(homography64, CvType.CV_64F);
+        Core.gemm(homography64, current.newCameraMatrix, 1, new Mat(), 0, combined);
+        Imgproc.initUndistortRectifyMap(current.cameraMatrix, current.distCoeffs, new Mat(), combined, map1.size(),
+                MAP1_TYPE, map1, map2);
+        homography64.release();
+        combined.release();
+
+        //Move the map into the coordinates of the area, the integer part is in map1
+        if (origin.x != 0 || origin.y != 0) {
+            Core.subtract(map1, new Scalar(Math.round(origin.x), Math.round(origin.y)), map1);
+        }
         return true;
     }
 
     /**
-     * Saves the two {@link Mat} containing the distortion configuration locally to the device
+     * Memory maps a file saved by {@link #saveMaps(File, long, Mat[])} and copies the maps out of it.
+     *
+     * @param file      The maps file
+     * @param checksum  Checksum of the calibration the maps must be created from
+     * @param mapWidth  Width of the frames the maps are for
+     * @param mapHeight Height of the frames the maps are for
+     * @return The two undistortion maps, or null if the file is missing or does not match
      */
-    private static synchronized void saveConfig() throws IOException {
-        FileOutputStream fstream = null;
-        ObjectOutputStream ostream = null;
+    private static Mat[] loadMaps(File file, long checksum, int mapWidth, int mapHeight) {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile input = null;
         try {
-            // Open up an objectstream
-            fstream = new FileOutputStream(configFile());
-            ostream = new ObjectOutputStream(fstream);
-
-            // Convert the Mat objects to arrays
-            ostream.writeObject(matToArray(intrinsic));
-            ostream.writeObject(matToArray(distCoeffs));
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            input = new RandomAccessFile(file, "r");
+            FileChannel channel = input.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.nativeOrder());
+
+            long mapBytes = (long) mapWidth * mapHeight * (CvType.ELEM_SIZE(MAP1_TYPE) + CvType.ELEM_SIZE(MAP2_TYPE));
+            if (buffer.remaining() != MAPS_HEADER + mapBytes
+                    || buffer.getInt() != MAPS_MAGIC || buffer.getInt() != MAPS_VERSION
+                    || buffer.getInt() != mapWidth || buffer.getInt() != mapHeight
+                    || buffer.getLong() != checksum) {
+                Log.d(TAG, "Undistortion maps are outdated: " + file.getName());
+                return null;
+            }
+
+            ShortBuffer shorts = buffer.asShortBuffer();
+            Mat map1 = new Mat(mapHeight, mapWidth, MAP1_TYPE);
+            Mat map2 = new Mat(mapHeight, mapWidth, MAP2_TYPE);
+            readMap(shorts, map1);
+            readMap(shorts, map2);
+            Log.d(TAG, "Undistortion maps loaded: " + file.getName());
+            return new Mat[]{map1, map2};
         } catch (IOException e) {
             e.printStackTrace();
-        }finally {
-            if(fstream != null)
-                fstream.close();
-            if(ostream != null)
-                ostream.close();
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
+    }
 
+    /**
+     * Saves undistortion maps with a header describing the resolution and calibration they
+     * belong to. Written to a temporary file first, so a partly written file is never loaded.
+     */
+    private static void saveMaps(File file, long checksum, Mat[] maps) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            FileChannel channel = output.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(MAPS_HEADER).order(ByteOrder.nativeOrder());
+            header.putInt(MAPS_MAGIC).putInt(MAPS_VERSION).putInt(maps[0].cols()).putInt(maps[0].rows()).putLong(checksum);
+            header.flip();
+            writeFully(channel, header);
+            writeMap(channel, maps[0]);
+            writeMap(channel, maps[1]);
+        } finally {
+            output.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
     }
 
     /**
-     * Converts a {@link Mat} to a double array since {@link Mat} is not serializable
-     *
-     * @param input The input {@link Mat} to convert
-     * @return A 2 dimensional double array containing the {@link Mat} data
+     * Copies a 16 bit map out of the buffer with a single put, the new map is continuous.
      */
-    private static double[][] matToArray(Mat input) {
-        int cols = input.cols();
-        int rows = input.rows();
-        double matArray[][] = new double[rows][cols];
-        for (int i = 0; i < rows; i++) {
-            for (int a = 0; a < cols; a++) {
+    private static void readMap(ShortBuffer shorts, Mat map) {
+        short data[] = new short[(int) map.total() * map.channels()];
+        shorts.get(data);
+        map.put(0, 0, data);
+    }
 
-                matArray[i][a] = input.get(i, a)[0];
-            }
+    /**
+     * Writes a 16 bit map one row at a time.
+     */
+    private static void writeMap(FileChannel channel, Mat map) throws IOException {
+        short row[] = new short[map.cols() * map.channels()];
+        ByteBuffer bytes = ByteBuffer.allocate(row.length * 2).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < map.rows(); i++) {
+            map.get(i, 0, row);
+            bytes.clear();
+            bytes.asShortBuffer().put(row);
+            writeFully(channel, bytes);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * Checksum of the calibration, tells if saved maps were created from it.
+     */
+    private static long checksum(Mat... mats) {
+        CRC32 crc = new CRC32();
+        for (Mat mat : mats) {
+            double values[] = new double[(int) mat.total() * mat.channels()];
+            mat.get(0, 0, values);
+            ByteBuffer bytes = ByteBuffer.allocate(values.length * 8);
+            bytes.asDoubleBuffer().put(values);
+            crc.update(bytes.array());
         }
-        return matArray;
+        return crc.getValue();
     }
 
     /**
-     * Converts a 2 dimentional double array to {@link Mat}
+     * Gets the file the undistortion maps of the camera for a resolution are saved in,
+     * in the directory of the calibrations.
+     */
+    private static File mapsFile(int mapWidth, int mapHeight) {
+        return new File(configFile().getParentFile(), mapsPrefix() + mapWidth + "x" + mapHeight + ".save");
+    }
+
+    /**
+     * @return Start of the names of the undistortion map files of the camera
+     */
+    private static String mapsPrefix() {
+        return MAPS_PREFIX + cameraId + "_";
+    }
+
+    /**
+     * Undistorts a frame in place using the maps from {@link #createUndistortMaps(Mat, Mat, Mat, Size)}
      *
-     * @param input The 2D double array to convert
-     * @return A {@link Mat} containing the data stored in the array
+     * @param inputFrame The frame to undistort
+     * @param map1       The first undistortion map
+     * @param map2       The second undistortion map
      */
-    private static Mat arrayToMat(double[][] input) {
-        int rows = input.length;
-        int cols = input[0].length;
-        Mat mat = new Mat(rows, cols, CvType.CV_64F);
+    public static void undistort(Mat inputFrame, Mat map1, Mat map2) {
+        //Get buffer
+        Mat undistorted = MatPool.acquire(inputFrame.cols(), inputFrame.rows(), inputFrame.type());
 
-        for (int i = 0; i < rows; i++) {
-            for (int a = 0; a < cols; a++) {
-                mat.put(i, a, input[i][a]);
-            }
+        Imgproc.remap(inputFrame, undistorted, map1, map2, Imgproc.INTER_LINEAR);
+
+        //Copy undistorted image to return and set unused.
+        undistorted.copyTo(inputFrame);
+        MatPool.release(undistorted);
+    }
+
+    /**
+     * Loads the calibration of the camera for the current resolution, if it is saved
+     *
+     * @return True on success, false otherwise
+     */
+    private static synchronized boolean loadConfig() {
+        List<CalibrationStore.Profile> profiles = CalibrationStore.load(configFile());
+        CalibrationStore.Profile profile = CalibrationStore.find(profiles, cameraId, width, height);
+        if (profile == null) {
+            Log.d(TAG, "Could not find config for camera " + cameraId + " at " + width + "x" + height);
+            return false;
         }
-        return mat;
+        intrinsic = profile.cameraMatrix;
+        distCoeffs = profile.distCoeffs;
+        return true;
+    }
+
+    /**
+     * Saves the two {@link Mat} containing the distortion configuration locally to the device,
+     * as the profile of the camera for the current resolution
+     */
+    private static synchronized void saveConfig() throws IOException {
+        List<CalibrationStore.Profile> profiles = CalibrationStore.load(configFile());
+        CalibrationStore.put(profiles, new CalibrationStore.Profile(cameraId, width, height, intrinsic, distCoeffs));
+        CalibrationStore.save(configFile(), profiles);
     }
 
     /**
@@ -360,18 +863,41 @@ public class Calibration {
         ContextWrapper cw = new ContextWrapper(MainActivity.context);
         File dir = cw.getDir("config", MainActivity.context.MODE_PRIVATE);
 
-        return new File(dir, "config.save");
+        return new File(dir, CONFIG_FILE);
     }
 
     /**
-     * Deletes calibration file.
+     * Deletes the calibrations of the camera for all resolutions.
      */
     public static synchronized void deleteCalibration() {
+        //The frames stop undistorting at once, not after the files are deleted
+        state = null;
         File configLoc = Calibration.configFile();
 
-
-        if (configLoc.exists()) {
+        List<CalibrationStore.Profile> profiles = CalibrationStore.load(configLoc);
+        CalibrationStore.remove(profiles, cameraId);
+        if (profiles.isEmpty()) {
             configLoc.delete();
+        } else {
+            try {
+                CalibrationStore.save(configLoc, profiles);
+            } catch (IOException e) {
+                //The old file is kept, the other cameras must not lose their calibrations
+                Log.d(TAG, "Failed to save the calibrations of the other cameras, camera " + cameraId + " is still calibrated");
+                e.printStackTrace();
+            }
+        }
+        //The undistortion maps of the camera belong to the deleted calibration. The legacy config and
+        //the maps of older versions, which were not saved per camera, are never loaded
+        String prefix = mapsPrefix();
+        File[] files = configLoc.getParentFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(prefix) || name.equals(LEGACY_CONFIG_FILE) || name.matches(LEGACY_MAPS_FILE)) {
+                    file.delete();
+                }
+            }
         }
         init();
 
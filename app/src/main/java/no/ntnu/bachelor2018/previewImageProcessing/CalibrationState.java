@@ -0,0 +1,57 @@
+package no.ntnu.bachelor2018.previewImageProcessing;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+/**
+ * The calibration of the camera for one frame size, everything needed to undistort the frames.
+ * A state is never changed once created, so the frame workers read it without locking.
+ * {@link Calibration} replaces it as a whole when the calibration or the frame size changes.
+ * The Mats of a replaced state are left to the garbage collector, as a worker may still be
+ * undistorting a frame with them.
+ */
+final class CalibrationState {
+
+    final int width, height;        // Size of the frames the state is for
+    final Mat cameraMatrix;         // Calibrated camera matrix
+    final Mat distCoeffs;           // Calibrated distortion coefficients
+    final Mat newCameraMatrix;      // Camera matrix of the undistorted frames
+    final Rect roi;                 // Region of interest after undistortion
+    final Mat map1, map2;           // Undistortion maps, null if only the found frames are undistorted
+
+    /**
+     * @param maps The two undistortion maps, or null if the frames are not undistorted
+     */
+    CalibrationState(int width, int height, Mat cameraMatrix, Mat distCoeffs, Mat newCameraMatrix,
+                     Rect roi, Mat[] maps) {
+        this.width = width;
+        this.height = height;
+        this.cameraMatrix = cameraMatrix;
+        this.distCoeffs = distCoeffs;
+        this.newCameraMatrix = newCameraMatrix;
+        this.roi = roi;
+        this.map1 = maps != null ? maps[0] : null;
+        this.map2 = maps != null ? maps[1] : null;
+    }
+
+    /**
+     * @return A copy of this state with undistortion maps
+     */
+    CalibrationState withMaps(Mat[] maps) {
+        return new CalibrationState(width, height, cameraMatrix, distCoeffs, newCameraMatrix, roi, maps);
+    }
+
+    /**
+     * @return True if the state has the maps to undistort whole frames
+     */
+    boolean hasMaps() {
+        return map1 != null && map2 != null;
+    }
+
+    /**
+     * @return True if the state is for frames of this size
+     */
+    boolean matches(int frameWidth, int frameHeight) {
+        return width == frameWidth && height == frameHeight;
+    }
+}
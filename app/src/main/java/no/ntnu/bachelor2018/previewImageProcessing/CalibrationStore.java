@@ -0,0 +1,279 @@
+package no.ntnu.bachelor2018.previewImageProcessing;
+
+import android.util.Log;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Saves the calibrations in one small binary file, one profile per camera and resolution.
+ * The file starts with a magic number and version, and ends with a CRC32 of everything before
+ * it, so a partly written or foreign file is never loaded.
+ * A profile can be used for any resolution with the same aspect ratio, the camera matrix is
+ * then scaled to the resolution. The distortion coefficients do not depend on the resolution.
+ */
+final class CalibrationStore {
+
+    private static final String TAG = "CalibrationStore";
+    private static final int MAGIC = 0x50514350;   // "PQCP"
+    private static final int VERSION = 1;
+    private static final int HEADER = 3 * 4;       // magic, version and number of profiles
+    private static final int CRC = 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The calibration of one camera at one resolution.
+     */
+    static final class Profile {
+        final String cameraId;
+        final int width, height;
+        final Mat cameraMatrix;     // 3x3 CV_64F
+        final Mat distCoeffs;       // 1xN CV_64F
+
+        Profile(String cameraId, int width, int height, Mat cameraMatrix, Mat distCoeffs) {
+            this.cameraId = cameraId;
+            this.width = width;
+            this.height = height;
+            this.cameraMatrix = cameraMatrix;
+            this.distCoeffs = distCoeffs;
+        }
+
+        boolean matches(String id, int frameWidth, int frameHeight) {
+            return cameraId.equals(id) && width == frameWidth && height == frameHeight;
+        }
+
+        /**
+         * @return True if the profile can be scaled to the resolution
+         */
+        boolean sameAspect(String id, int frameWidth, int frameHeight) {
+            return cameraId.equals(id) && (long) width * frameHeight == (long) height * frameWidth;
+        }
+
+        /**
+         * @return The profile scaled to another resolution with the same aspect ratio
+         */
+        Profile scaled(int frameWidth, int frameHeight) {
+            double scaleX = (double) frameWidth / width;
+            double scaleY = (double) frameHeight / height;
+            double camera[] = new double[9];
+            cameraMatrix.get(0, 0, camera);
+            //Focal lengths scale with the image, the principal point is scaled from pixel centers
+            camera[0] *= scaleX;
+            camera[2] = (camera[2] + 0.5) * scaleX - 0.5;
+            camera[4] *= scaleY;
+            camera[5] = (camera[5] + 0.5) * scaleY - 0.5;
+            Mat scaledCamera = new Mat(3, 3, CvType.CV_64F);
+            scaledCamera.put(0, 0, camera);
+            return new Profile(cameraId, frameWidth, frameHeight, scaledCamera, distCoeffs);
+        }
+    }
+
+    private CalibrationStore() {
+    }
+
+    /**
+     * Finds the profile for a camera and resolution. If there is none, the largest profile of
+     * the camera with the same aspect ratio is scaled to the resolution.
+     *
+     * @param profiles The saved profiles
+     * @return The profile, or null if the camera is not calibrated for this aspect ratio
+     */
+    static Profile find(List<Profile> profiles, String cameraId, int width, int height) {
+        Profile best = null;
+        for (Profile profile : profiles) {
+            if (profile.matches(cameraId, width, height)) {
+                return profile;
+            }
+            if (profile.sameAspect(cameraId, width, height) && (best == null || profile.width > best.width)) {
+                best = profile;
+            }
+        }
+        if (best != null) {
+            Log.d(TAG, "Scaling calibration from " + best.width + "x" + best.height + " to " + width + "x" + height);
+            return best.scaled(width, height);
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the profile for the same camera and resolution, or adds it.
+     */
+    static void put(List<Profile> profiles, Profile profile) {
+        for (int i = 0; i < profiles.size(); i++) {
+            if (profiles.get(i).matches(profile.cameraId, profile.width, profile.height)) {
+                profiles.set(i, profile);
+                return;
+            }
+        }
+        profiles.add(profile);
+    }
+
+    /**
+     * Removes every profile of a camera.
+     */
+    static void remove(List<Profile> profiles, String cameraId) {
+        for (int i = profiles.size() - 1; i >= 0; i--) {
+            if (profiles.get(i).cameraId.equals(cameraId)) {
+                profiles.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Reads all profiles from the file.
+     *
+     * @return The profiles, empty if the file is missing or not valid
+     */
+    static List<Profile> load(File file) {
+        List<Profile> profiles = new ArrayList<>();
+        byte data[];
+        try {
+            data = readFully(file);
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "Could not find calibrations");
+            return profiles;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return profiles;
+        }
+
+        if (data.length < HEADER + CRC) {
+            Log.d(TAG, "Calibrations file is too short");
+            return profiles;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - CRC);
+        if (buffer.getLong(data.length - CRC) != crc.getValue()
+                || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            Log.d(TAG, "Calibrations file is corrupt or of another version");
+            return profiles;
+        }
+
+        try {
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                byte id[] = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(id);
+                int width = buffer.getInt();
+                int height = buffer.getInt();
+                Mat cameraMatrix = readMat(buffer);
+                Mat distCoeffs = readMat(buffer);
+                profiles.add(new Profile(new String(id, UTF8), width, height, cameraMatrix, distCoeffs));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Log.d(TAG, "Calibrations file is corrupt: " + e);
+            profiles.clear();
+        }
+        return profiles;
+    }
+
+    /**
+     * Writes all profiles to the file. Written to a temporary file first, so a partly written
+     * file never replaces the saved profiles.
+     */
+    static void save(File file, List<Profile> profiles) throws IOException {
+        int length = HEADER + CRC;
+        byte ids[][] = new byte[profiles.size()][];
+        for (int i = 0; i < ids.length; i++) {
+            Profile profile = profiles.get(i);
+            ids[i] = profile.cameraId.getBytes(UTF8);
+            length += 2 + ids[i].length + 2 * 4 + matSize(profile.cameraMatrix) + matSize(profile.distCoeffs);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(profiles.size());
+        for (int i = 0; i < ids.length; i++) {
+            Profile profile = profiles.get(i);
+            buffer.putShort((short) ids[i].length).put(ids[i]);
+            buffer.putInt(profile.width).putInt(profile.height);
+            writeMat(buffer, profile.cameraMatrix);
+            writeMat(buffer, profile.distCoeffs);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+        try {
+            output.write(buffer.array());
+        } finally {
+            output.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Bytes taken by a {@link Mat} written with {@link #writeMat(ByteBuffer, Mat)}
+     */
+    private static int matSize(Mat mat) {
+        return 2 * 4 + 8 * (int) mat.total();
+    }
+
+    /**
+     * Writes the size and the values of a single channel double {@link Mat}, copied out in one call.
+     */
+    private static void writeMat(ByteBuffer buffer, Mat mat) {
+        double values[] = new double[(int) mat.total()];
+        Mat doubles = mat;
+        if (mat.type() != CvType.CV_64F) {
+            doubles = new Mat();
+            mat.convertTo(doubles, CvType.CV_64F);
+        }
+        doubles.get(0, 0, values);
+        buffer.putInt(mat.rows()).putInt(mat.cols());
+        buffer.asDoubleBuffer().put(values);
+        buffer.position(buffer.position() + 8 * values.length);
+    }
+
+    /**
+     * Reads a {@link Mat} written by {@link #writeMat(ByteBuffer, Mat)}, copied in with one call.
+     */
+    private static Mat readMat(ByteBuffer buffer) {
+        int rows = buffer.getInt();
+        int cols = buffer.getInt();
+        if (rows <= 0 || cols <= 0 || (long) rows * cols * 8 > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad matrix size " + rows + "x" + cols);
+        }
+        double values[] = new double[rows * cols];
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + 8 * values.length);
+        Mat mat = new Mat(rows, cols, CvType.CV_64F);
+        mat.put(0, 0, values);
+        return mat;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            byte data[] = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int count = input.read(data, read, data.length - read);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                read += count;
+            }
+            return data;
+        } finally {
+            input.close();
+        }
+    }
+}
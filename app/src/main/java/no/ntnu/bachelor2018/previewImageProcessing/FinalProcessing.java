@@ -1,24 +1,14 @@
 package no.ntnu.bachelor2018.previewImageProcessing;
 
 import android.app.Activity;
-import android.app.Application;
-import android.app.ProgressDialog;
 import android.content.Intent;
-import android.content.Context;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
 import android.os.Environment;
-import android.os.Handler;
-import android.os.Looper;
-import android.preference.PreferenceManager;
 import android.provider.MediaStore;
-import android.support.annotation.MainThread;
-import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.View;
 import android.widget.ProgressBar;
 import android.widget.TextView;
-import android.widget.Toast;
 
 import org.opencv.android.Utils;
 import org.opencv.core.Core;
@@ -30,19 +20,24 @@ import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
-import org.w3c.dom.Text;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 import filmreader.bacheloroppg.ntnu.no.filmreader.R;
 import no.ntnu.bachelor2018.filmreader.FileDisplay;
 import no.ntnu.bachelor2018.filmreader.MainActivity;
+import no.ntnu.bachelor2018.filmreader.MatPool;
+import no.ntnu.bachelor2018.filmreader.Metrics;
+import no.ntnu.bachelor2018.filmreader.PipelineConfig;
+import no.ntnu.bachelor2018.filmreader.PiqlLib.DecodeResult;
+import no.ntnu.bachelor2018.filmreader.PiqlLib.DecodeTask;
+import no.ntnu.bachelor2018.filmreader.PiqlLib.DecodedData;
 import no.ntnu.bachelor2018.filmreader.PiqlLib.Wrapper;
 
 import static android.content.ContentValues.TAG;
@@ -54,6 +49,8 @@ import static android.content.ContentValues.TAG;
 
 public class FinalProcessing {
     private static final Object displayLock = new Object();
+    //Unboxing running on any thread, cancelled when the camera stops or a frame is decoded
+    private static final List<DecodeTask> decoding = new ArrayList<>();
     public static final int MINSIZE = 540;
     private static final double maskSize = 0.15;
     //Calculated margin distance from image example
@@ -62,14 +59,12 @@ public class FinalProcessing {
     //0,089385474860335 64/716 constant to find margin width
     //Rounded down to 0.08 to ensure that the neighboring frames are not included
     //in the cropped image.
-    private static final double marginCoefficient = 0.08;
-    private int width, height; //Width and height of image
-    //private Mat perspectiveImage;
+    static final double marginCoefficient = 0.08;
     //Transformation matrix used to perform perspective transformation
     private Mat perspectiveMatrix;
 
-    private Mat croppedImage;       //Should not be managed by imageBufferManager as the size varies
-    private Mat rotatedImage;       //Should not be managed by imageBufferManager as the size varies
+    private QualityGate qualityGate; //Rejects frames that can not be decoded before unboxing
+    private FrameStacker stacker;    //Fuses still frames before unboxing
 
     private TextView textView;
     private ProgressBar progressBar;
@@ -78,9 +73,14 @@ public class FinalProcessing {
     public FinalProcessing() {
         //initialize matrix
         perspectiveMatrix = new Mat(3, 3, CvType.CV_32FC1);
-        activity = (Activity)MainActivity.context;
-        textView = activity.findViewById(R.id.progressTextView);
-        progressBar = activity.findViewById(R.id.progressBar);
+        qualityGate = new QualityGate();
+        stacker = new FrameStacker();
+        //No views to update when running without the main activity
+        if (MainActivity.context instanceof Activity) {
+            activity = (Activity) MainActivity.context;
+            textView = (TextView) activity.findViewById(R.id.progressTextView);
+            progressBar = (ProgressBar) activity.findViewById(R.id.progressBar);
+        }
     }
 
     /**
@@ -94,91 +94,237 @@ public class FinalProcessing {
         return Math.sqrt(Math.pow(p1.x - p2.x, 2) + Math.pow(p1.y - p2.y, 2));
     }
 
-    /**
-     * Used to adjust image size dependent variables.
-     *
-     * @param image
-     */
-    private void calibSize(Mat image) {
-        if (image.width() != this.width || image.height() != this.height) {
-            this.width = image.width();
-            this.height = image.height();
-            //perspectiveImage = new Mat(height,width, CvType.CV_8UC1);
-            croppedImage = new Mat();
-            rotatedImage = new Mat();
-        }
-    }
-
     /**
      * Finalizes image for processing by:
      * -Performing image perspective transform
      * -Inverting the image
+     * -Rotating and decoding the image
      *
      * @param image grayscale image of frame
      * @param pts   Corner points of frame
      */
     public Mat finalizeImage(Mat image, List<Point> pts, Overlay overlay) {
-        MatOfPoint2f inputPts, targetPts;
-        calibSize(image);
-        double maxWidth, maxHeight;
+        return finalizeImage(image, pts, false, overlay);
+    }
+
+    /**
+     * Finalizes image for processing, see {@link #finalizeImage(Mat, List, Overlay)}
+     *
+     * @param image     grayscale image of frame
+     * @param pts       Corner points of frame
+     * @param undistort True if the image is not undistorted, only the frame is then undistorted while warping
+     */
+    public Mat finalizeImage(Mat image, List<Point> pts, boolean undistort, Overlay overlay) {
         if (pts != null && pts.size() == 4) {
-            inputPts = new MatOfPoint2f(pts.get(3), pts.get(2), pts.get(1), pts.get(0));
+            Mat rotated = warpImage(image, pts, undistort ? new Point(0, 0) : null,
+                    image.width(), image.height(), overlay);
 
-            //Find new image width and height using maximum edge lengths for minimal loss
-            maxWidth = Math.max(distance(pts.get(0), pts.get(1)), distance(pts.get(3), pts.get(2)));
-            maxHeight = Math.max(distance(pts.get(3), pts.get(0)), distance(pts.get(1), pts.get(2)));
+            // frame visualizer without zoom or perspective wrapping
+            drawFrame(image, pts);
 
-            //left and right margin size
-            double cropMarginWidth = maxWidth * marginCoefficient;
-            double cropMarginHeight = maxHeight * marginCoefficient;
-            //Calculate destination points for the corner points(inputPts)
-            //Marigin sizes are added as an offset to the target points.
-            targetPts = new MatOfPoint2f(
-                    new Point(cropMarginWidth, cropMarginHeight),                           //Top left target point
-                    new Point(maxWidth + cropMarginWidth, cropMarginHeight),            //Top right
-                    new Point(maxWidth + cropMarginWidth, maxHeight + cropMarginHeight),  //Bottom right
-                    new Point(cropMarginWidth, maxHeight + cropMarginHeight));        //Bottom left
+            //Failed to warp or rotate
+            if (rotated == null) {
+                return null;
+            }
 
-            //Get transformation matrix
-            perspectiveMatrix = Imgproc.getPerspectiveTransform(inputPts, targetPts);
+            decode(rotated, pts);
+            MatPool.release(rotated);
+            // If the file display is not already showing and processing was successful.
+            //return rotatedImage;
+            return null;
+        }
 
-            //Warp image
-            //New image will have a margin on all 4 sides
-            Imgproc.warpPerspective(image, croppedImage, perspectiveMatrix, new Size(maxWidth + 2 * cropMarginWidth, maxHeight + 2 * cropMarginHeight));
+        hideProgress();
 
+        return null;
 
+    }
 
-            // frame visualizer without zoom or perspective wrapping
+    /**
+     * Performs the perspective transform, inverts the image and rotates it to the
+     * orientation expected by the unboxing library.
+     *
+     * @param image     grayscale image containing the frame
+     * @param pts       Corner points of frame in image coordinates
+     * @param maxWidth  Largest accepted width of the warped image (width of the camera frame)
+     * @param maxHeight Largest accepted height of the warped image (height of the camera frame)
+     * @param overlay   Overlay to draw rotation checks onto, can be null
+     * @return The rotated image ready for decoding, or null if the frame is rejected.
+     * The image is checked out from {@link MatPool} and must be handed back with MatPool.release
+     */
+    public Mat warpImage(Mat image, List<Point> pts, int maxWidth, int maxHeight, Overlay overlay) {
+        return warpImage(image, pts, null, maxWidth, maxHeight, overlay);
+    }
 
-            Imgproc.line(image, inputPts.toArray()[0], inputPts.toArray()[1], new Scalar(255, 255, 255), 5);
-            Imgproc.line(image, inputPts.toArray()[1], inputPts.toArray()[2], new Scalar(255, 255, 255), 5);
-            Imgproc.line(image, inputPts.toArray()[2], inputPts.toArray()[3], new Scalar(255, 255, 255), 5);
-            Imgproc.line(image, inputPts.toArray()[3], inputPts.toArray()[0], new Scalar(255, 255, 255), 5);
+    /**
+     * Performs the perspective transform, inverts the image and rotates it to the
+     * orientation expected by the unboxing library.
+     * The orientation is found in the image before warping, and the rotation is added to the
+     * perspective transform, so the frame is only resampled once.
+     * If the image is not undistorted, the lens undistortion and the perspective transform are
+     * done in one remap that only samples the warped frame, instead of undistorting the whole image first.
+     *
+     * @param image     grayscale image containing the frame
+     * @param pts       Corner points of frame in image coordinates
+     * @param origin    Position of the image in the camera frame if the image is not undistorted,
+     *                  null if it is undistorted
+     * @param maxWidth  Largest accepted width of the warped image (width of the camera frame)
+     * @param maxHeight Largest accepted height of the warped image (height of the camera frame)
+     * @param overlay   Overlay to draw rotation checks onto, can be null
+     * @return The rotated image ready for decoding, or null if the frame is rejected.
+     * The image is checked out from {@link MatPool} and must be handed back with MatPool.release
+     */
+    public Mat warpImage(Mat image, List<Point> pts, Point origin, int maxWidth, int maxHeight, Overlay overlay) {
+        MatOfPoint2f inputPts, targetPts;
+        long start = Metrics.start();
+        double frameWidth, frameHeight;
+        if (origin != null) {
+            //Warp from the corners in the undistorted camera frame
+            pts = Calibration.undistortPoints(pts, origin);
+            if (pts == null) {
+                return null;
+            }
+        }
+        inputPts = new MatOfPoint2f(pts.get(3), pts.get(2), pts.get(1), pts.get(0));
+
+        //Find new image width and height using maximum edge lengths for minimal loss
+        frameWidth = Math.max(distance(pts.get(0), pts.get(1)), distance(pts.get(3), pts.get(2)));
+        frameHeight = Math.max(distance(pts.get(3), pts.get(0)), distance(pts.get(1), pts.get(2)));
+
+        //left and right margin size
+        double cropMarginWidth = frameWidth * marginCoefficient;
+        double cropMarginHeight = frameHeight * marginCoefficient;
+        //Calculate destination points for the corner points(inputPts)
+        //Marigin sizes are added as an offset to the target points.
+        targetPts = new MatOfPoint2f(
+                new Point(cropMarginWidth, cropMarginHeight),                           //Top left target point
+                new Point(frameWidth + cropMarginWidth, cropMarginHeight),            //Top right
+                new Point(frameWidth + cropMarginWidth, frameHeight + cropMarginHeight),  //Bottom right
+                new Point(cropMarginWidth, frameHeight + cropMarginHeight));        //Bottom left
+
+        //Get transformation matrix
+        perspectiveMatrix = Imgproc.getPerspectiveTransform(inputPts, targetPts);
+
+        //New image will have a margin on all 4 sides
+        Size size = new Size((int) (frameWidth + 2 * cropMarginWidth), (int) (frameHeight + 2 * cropMarginHeight));
+
+        //If the found image crop is bigger then the image(happens with false positives)
+        if (size.width > maxWidth || size.height > maxHeight) {
+            return null;
+        }
 
+        //Find the orientation in the image, before anything is warped
+        long rotateStart = Metrics.start();
+        int quarterTurns = findRotation(image, targetPts, origin, overlay);
+        Metrics.record(Metrics.Stage.ROTATE, rotateStart);
+        if (quarterTurns < 0) {
+            return null;
+        }
 
-            //If the found image crop is bigger then the image(happens with false positives)
-            if (croppedImage.width() > image.width() || croppedImage.height() > image.height()) {
+        //Add the rotation to the transform, the width and height swap on quarter turns
+        Mat rotation = rotationMatrix(quarterTurns, size);
+        Mat transform = new Mat();
+        Core.gemm(rotation, perspectiveMatrix, 1, new Mat(), 0, transform);
+        rotation.release();
+        Size rotatedSize = quarterTurns % 2 == 0 ? size : new Size(size.height, size.width);
+        Mat rotated = MatPool.acquireRegion((int) rotatedSize.width, (int) rotatedSize.height, image.type());
+
+        //Warp image
+        if (origin == null) {
+            Imgproc.warpPerspective(image, rotated, transform, rotatedSize);
+        } else {
+            Mat map1 = MatPool.acquireRegion(rotated.width(), rotated.height(), CvType.CV_16SC2);
+            Mat map2 = MatPool.acquireRegion(rotated.width(), rotated.height(), CvType.CV_16UC1);
+            boolean mapped = Calibration.createWarpMaps(transform, origin, map1, map2);
+            if (mapped) {
+                Imgproc.remap(image, rotated, map1, map2, Imgproc.INTER_LINEAR);
+            }
+            MatPool.release(map1);
+            MatPool.release(map2);
+            if (!mapped) {
+                transform.release();
+                MatPool.release(rotated);
                 return null;
             }
+        }
+        transform.release();
+
+        //Invert image.
+        Core.bitwise_not(rotated, rotated);
+        Metrics.record(Metrics.Stage.WARP, start);
+        return rotated;
+    }
 
-            //Invert image.
-            Core.bitwise_not(croppedImage, croppedImage);
+    /**
+     * Draws the found frame onto the image, without zoom or perspective wrapping
+     *
+     * @param image image to draw on
+     * @param pts   Corner points of frame
+     */
+    public static void drawFrame(Mat image, List<Point> pts) {
+        for (int i = 0; i < pts.size(); i++) {
+            Imgproc.line(image, pts.get(i), pts.get((i + 1) % pts.size()), new Scalar(255, 255, 255), 5);
+        }
+    }
 
-            rotatedImage = rotateImage(targetPts, croppedImage, overlay);
+    /**
+     * Sends the rotated image to unboxing, and opens the file display if it succeeds.
+     * While the camera is held still the frames are stacked, and the fused image is sent
+     * to unboxing once {@link PipelineConfig#stackFrames} frames are collected.
+     *
+     * @param rotated inverted and rotated image of the frame
+     * @param corners Corners of the frame in the camera image, null to not stack the frame
+     * @return true if unboxing was successful
+     */
+    public boolean decode(Mat rotated, List<Point> corners) {
+        //Prevent threads from starting file display at the same time.
+        synchronized (displayLock) {
+            if (!MainActivity.isActive || !decodable(rotated)) {
+                return false;
+            }
+            QualityGate.Score score = checkQuality(rotated);
+            if (score == null) {
+                return false;
+            }
 
-            //Failed to rotate
-            if (rotatedImage == null) {
-                return null;
+            PipelineConfig config = PipelineConfig.get();
+            Mat image = rotated;
+            if (config.stackFrames <= 1 || corners == null) {
+                stacker.clear();
+            } else if (stacker.add(rotated, corners, config.stackFrames)) {
+                //Still frame, wait until the stack is full. A frame that moved is unboxed alone
+                if (stacker.size() < config.stackFrames) {
+                    return false;
+                }
+                long start = Metrics.start();
+                image = stacker.fuse(config.stackMedian);
+                stacker.clear();
+                Metrics.record(Metrics.Stage.STACK, start);
+                //The gate only learns from single frames
+                score = null;
             }
 
-            //Prevent threads from starting file display at the same time.
-            synchronized (displayLock) {
-                if (MainActivity.isActive && processMat(rotatedImage)) {
+            //The unboxer sharpens its input in place, an exported image is unboxed from a copy
+            Mat unboxInput = image;
+            if (config.saveProcessed && MainActivity.context != null) {
+                unboxInput = MatPool.acquireRegion(image.width(), image.height(), image.type());
+                image.copyTo(unboxInput);
+            }
+            DecodedData data = null;
+            try {
+                data = unbox(unboxInput, score);
+                if (data != null) {
                     MainActivity.isActive = false;
-                    if (PreferenceManager.getDefaultSharedPreferences(MainActivity.context).getBoolean("pref_save",true)) {
+                    //Nothing else has to be decoded
+                    cancelDecodes();
+                    //Without the main activity, e.g. when replaying frames, there is nothing to show
+                    if (MainActivity.context == null) {
+                        return true;
+                    }
+                    if (config.saveProcessed) {
                         /* Export bitmap to internal gallery */
-                        Mat exportMat = rotatedImage;
-                        Bitmap exportBitmap = Bitmap.createBitmap(rotatedImage.width(), rotatedImage.height(), Bitmap.Config.ARGB_8888);
+                        Mat exportMat = image;
+                        Bitmap exportBitmap = Bitmap.createBitmap(image.width(), image.height(), Bitmap.Config.ARGB_8888);
                         Utils.matToBitmap(exportMat, exportBitmap);
                         MediaStore.Images.Media.insertImage(MainActivity.context.getContentResolver(), exportBitmap, "Title", "Description");
 
@@ -187,19 +333,50 @@ public class FinalProcessing {
                         File path = (Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES));
                         String timeStamp = new SimpleDateFormat("yyyy-MM-dd_HH.mm.ss").format(new Date());
                         File file = new File(path, "processed_" + timeStamp + ".bmp");
-                        Imgcodecs.imwrite(file.toString(), rotatedImage);
+                        Imgcodecs.imwrite(file.toString(), image);
                     }
 
-                    // Start file activity for showing the tar file
+                    // Start file activity for showing the tar file, it frees the data once it is left
+                    FileDisplay.setData(data);
+                    data = null;
                     Intent intent = new Intent(MainActivity.context, FileDisplay.class);
                     MainActivity.context.startActivity(intent);
+                    return true;
+                }
+            } finally {
+                if (data != null) {
+                    data.close();
+                }
+                if (unboxInput != image) {
+                    MatPool.release(unboxInput);
+                }
+                if (image != rotated) {
+                    MatPool.release(image);
                 }
             }
-            // If the file display is not already showing and processing was successful.
-            //return rotatedImage;
-            return null;
         }
+        return false;
+    }
+
+    /**
+     * Cancels the unboxing running on every thread, e.g. when the camera stops.
+     * The native unboxer aborts at its next check instead of finishing the frame.
+     */
+    public static void cancelDecodes() {
+        synchronized (decoding) {
+            for (DecodeTask task : decoding) {
+                task.cancel(false);
+            }
+        }
+    }
 
+    /**
+     * Hides the decoding progress indicator.
+     */
+    public void hideProgress() {
+        if (activity == null) {
+            return;
+        }
         activity.runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -207,24 +384,67 @@ public class FinalProcessing {
                 textView.setVisibility(View.INVISIBLE);
             }
         });
-
-        return null;
-
     }
 
     /**
-     * Send image to unboxing.
+     * Send image to unboxing. Frames scoring too low on sharpness, border contrast or exposure
+     * are rejected by the {@link QualityGate} first.
      *
      * @param input grayscale image (1 Channel 8 bit depth)
      * @return true if unboxing was successful, false if not successful
      */
 
     public boolean processMat(Mat input) {
-        if (input != null && !input.empty() && input.width() > MINSIZE && input.height() > MINSIZE) {
-            byte image[] = new byte[input.width() * input.height()];
-            input.get(0, 0, image);
+        if (decodable(input)) {
+            QualityGate.Score score = checkQuality(input);
+            DecodedData data = score != null ? unbox(input, score) : null;
+            if (data != null) {
+                data.close();
+                return true;
+            }
+        }
 
+        return false;
+    }
 
+    /**
+     * @return true if the image is large enough to be unboxed
+     */
+    private static boolean decodable(Mat input) {
+        return input != null && !input.empty() && input.width() > MINSIZE && input.height() > MINSIZE;
+    }
+
+    /**
+     * Scores the image with the {@link QualityGate}.
+     *
+     * @return The score, or null if the image is rejected
+     */
+    private QualityGate.Score checkQuality(Mat input) {
+        long start = Metrics.start();
+        QualityGate.Score score = qualityGate.score(input);
+        boolean accepted = qualityGate.accept(score);
+        Metrics.record(Metrics.Stage.QUALITY, start);
+        if (!accepted) {
+            Metrics.count(Metrics.Counter.QUALITY_REJECTED);
+            Log.d(TAG, "Frame rejected: " + score);
+            return null;
+        }
+        return score;
+    }
+
+    /**
+     * Runs the native unboxing.
+     *
+     * @param input grayscale image (1 Channel 8 bit depth), may be sharpened in place by the unboxer
+     * @param score Quality score of the image, null for stacked images
+     * @return The decoded data, or null if unboxing was not successful. Must be closed once read
+     */
+    private DecodedData unbox(Mat input, QualityGate.Score score) {
+        Metrics.count(Metrics.Counter.DECODE_ATTEMPTS);
+        long start = Metrics.start();
+
+        //No progress to show when running without the main activity
+        if (activity != null) {
             activity.runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
@@ -233,11 +453,47 @@ public class FinalProcessing {
                     textView.setText("Processing");
                 }
             });
-
-            return Wrapper.getFileFromImage(input.width(), input.height(), image);
         }
 
-        return false;
+        //The unboxer reads the image in place, on this thread so the image stays valid
+        DecodeTask task = Wrapper.createDecodeTask(input.width(), input.height(), input.dataAddr(), (int) input.step1());
+        synchronized (decoding) {
+            decoding.add(task);
+        }
+        DecodeResult result = null;
+        try {
+            task.run();
+            result = task.get();
+        } catch (CancellationException e) {
+            Metrics.count(Metrics.Counter.DECODE_CANCELLED);
+            Log.d(TAG, "Unboxing cancelled");
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        } finally {
+            synchronized (decoding) {
+                decoding.remove(task);
+            }
+        }
+        Metrics.record(Metrics.Stage.UNBOX, start);
+        DecodedData data = null;
+        if (result != null) {
+            //Where the time of the native unboxing went, also for frames that failed
+            Metrics.recordNanos(Metrics.Stage.UNBOX_EXTRACT, result.getExtractNanos());
+            if (result.getStepCount() > 0) {
+                Metrics.recordNanos(Metrics.Stage.UNBOX_DECODE, result.getDecodeNanos());
+            }
+            data = result.takeData();
+        }
+        boolean success = data != null;
+        if (success) {
+            Metrics.count(Metrics.Counter.DECODE_SUCCESSES);
+            if (score != null) {
+                qualityGate.decoded(score);
+            }
+        }
+        Log.d(TAG, "Frame " + (success ? "decoded: " : "not decoded: ") + (score != null ? score : "stacked")
+                + (result != null ? ", " + result : ""));
+        return data;
     }
 
     /**
@@ -278,7 +534,7 @@ public class FinalProcessing {
 
 
         //Add sample lines to overlay
-        for (int i = 0; i < 4; i++) {
+        for (int i = 0; i < 4 && overlay != null; i++) {
             List<Point> line = new ArrayList<>();
             line.add(retPts[i][0]);
             line.add(retPts[i][1]);
@@ -288,108 +544,137 @@ public class FinalProcessing {
     }
 
     /**
-     * Rotates the image
+     * Finds the rotation that brings the frame to the orientation expected by the unboxing library.
+     * The check lines are placed in the warped frame, and sampled in the image through the
+     * inverse of the perspective transform.
      *
-     * @param corners
-     * @param image
+     * @param image   grayscale image containing the frame
+     * @param corners Corners of the frame in the warped image
+     * @param origin  Position of the image in the camera frame if the image is not undistorted, else null
+     * @param overlay Overlay to draw the rotation checks onto, can be null
+     * @return Number of quarter turns counter clockwise, or -1 if the orientation was not found
      */
-    private Mat rotateImage(MatOfPoint2f corners, Mat image, Overlay overlay) {
+    private int findRotation(Mat image, MatOfPoint2f corners, Point origin, Overlay overlay) {
         List<Point> pts = corners.toList();
-        Point pts2[] = corners.toArray();
+        Mat inverse = perspectiveMatrix.inv();
 
         Point[][] alignCheck = getRotateChecklines(pts, overlay);
         double bestScore = 0;
         int bestScoreIndex = -1;
         for (int i = 0; i < 4; i++) {
             //Get the image score
-            overlay.addText("P" + i, pts.get(i));
-            overlay.addText("P" + i, pts2[i]);
-            double score = sampleAndScore(alignCheck[i][0], alignCheck[i][1], image);
+            if (overlay != null) {
+                overlay.addText("P" + i, pts.get(i));
+            }
+            double score = sampleAndScore(alignCheck[i][0], alignCheck[i][1], image, inverse, origin);
             if (score > bestScore) {
                 bestScoreIndex = i;
                 bestScore = score;
             }
         }
+        inverse.release();
+
+        /*The best scoring line should be at the top
+         * best = 0, rotation = 180
+         * best = 1, rotation = 270
+         * best = 2, rotation = 0
+         * best = 3, rotation = 90
+         * Rotating by best * 90 degrees counter clockwise gives the same image
+         * as the rotations above.
+         */
+        return bestScoreIndex;
+    }
 
-        //If sampleAndScore did not fail.
-        if (bestScoreIndex != -1) {
-            /*Rotate image.
-             * The best scoring line should be at the top
-             * best = 0, rotation = 180
-             * best = 1, rotation = 270
-             * best = 2, rotation = 0
-             * best = 3, rotation = 90
-             * => RP_n = ((n+2)%4)*90
-             */
-            return GeneralImgproc.rotateMat(image, bestScoreIndex * 90);
-            //overlay.addText("Best:" + bestScoreIndex,new Point(image.width()/2, image.height()/2));
-            //return image;
+    /**
+     * Rotation of a warped image by quarter turns counter clockwise, as a perspective transform
+     * to multiply the warp with.
+     *
+     * @param quarterTurns Number of quarter turns, 0 to 3
+     * @param size         Size of the warped image before rotating
+     */
+    private static Mat rotationMatrix(int quarterTurns, Size size) {
+        //Last pixel column and row, the rotated image covers the same pixels
+        double right = size.width - 1, bottom = size.height - 1;
+        Mat rotation = new Mat(3, 3, CvType.CV_64F);
+        switch (quarterTurns) {
+            case 1:
+                rotation.put(0, 0, 0, 1, 0, -1, 0, right, 0, 0, 1);
+                break;
+            case 2:
+                rotation.put(0, 0, -1, 0, right, 0, -1, bottom, 0, 0, 1);
+                break;
+            case 3:
+                rotation.put(0, 0, 0, -1, bottom, 1, 0, 0, 0, 0, 1);
+                break;
+            default:
+                rotation.put(0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 1);
+                break;
         }
-        return null;
+        return rotation;
     }
 
     /**
      * Samples the pixels in the line between p1 and p2
-     * and returns a score
+     * and returns a score. The line is two pixels wide in the warped frame, and is sampled in the
+     * image with one remap.
      *
-     * @param p1
-     * @param p2
-     * @return
+     * @param p1      Start of the line in the warped frame
+     * @param p2      End of the line in the warped frame
+     * @param image   grayscale image containing the frame
+     * @param inverse Transform from the warped frame to the undistorted image
+     * @param origin  Position of the image in the camera frame if the image is not undistorted, else null
+     * @return Difference between the mean of the two halves of the line, or -1 if it could not be sampled
      */
-    private double sampleAndScore(Point p1, Point p2, Mat image) {
-        double avg1 = 0, avg2 = 0, ptDistance;
-        Point ptMin, ptMax;
-        //Vertical line
-        if ((p1.x - p2.x) == 0 && (p1.y - p2.y != 0)) {
-            //Find top and bottom point
-            if (p1.y > p2.y) {
-                ptMin = p2;
-                ptMax = p1;
-            } else {
-                ptMin = p1;
-                ptMax = p2;
+    private double sampleAndScore(Point p1, Point p2, Mat image, Mat inverse, Point origin) {
+        double length = distance(p1, p2);
+        int samples = (int) length;
+        if (samples < 2) {
+            //Line too short, input was wrong
+            Log.d(TAG, "INVALID INPUT: line too short " + p1 + "\n" + p2 + "\n");
+            return -1;
+        }
+        double dx = (p2.x - p1.x) / length, dy = (p2.y - p1.y) / length;
+
+        //One row of points on each side of the line
+        Point linePts[] = new Point[2 * samples];
+        for (int row = 0; row < 2; row++) {
+            double offset = row - 0.5;
+            for (int i = 0; i < samples; i++) {
+                double along = i + 0.5;
+                linePts[row * samples + i] = new Point(
+                        p1.x + dx * along - dy * offset,
+                        p1.y + dy * along + dx * offset);
             }
-            ptDistance = ptMax.y - ptMin.y;
-
-            //Get submat of first half
-            Mat sampleArea = image.submat((int) ptMin.y, (int) (ptMin.y + ptDistance / 2) - 1, (int) p1.x - 1, (int) p1.x + 1);
-            avg1 = Core.mean(sampleArea).val[0];
-
-            //Get submat of second half
-            sampleArea = image.submat((int) (ptMin.y + ptDistance / 2), (int) ptMax.y, (int) p1.x - 1, (int) p1.x + 1);
-            avg2 = Core.mean(sampleArea).val[0];
-
-            return Math.abs(avg1 - avg2);
         }
-        //generalising this function would mean swapping point coordinates,
-        //which could lead to faults while getting the image's submat
-        //Horizontal line:
-        else if ((p1.y - p2.y) == 0 && (p1.x - p2.x != 0)) {
-            //Find top and bottom point
-            if (p1.x > p2.x) {
-                ptMin = p2;
-                ptMax = p1;
-            } else {
-                ptMin = p1;
-                ptMax = p2;
+        MatOfPoint2f warped = new MatOfPoint2f(linePts);
+        MatOfPoint2f source = new MatOfPoint2f();
+        Core.perspectiveTransform(warped, source, inverse);
+        warped.release();
+        if (origin != null) {
+            MatOfPoint2f distorted = Calibration.distortPoints(source, origin);
+            source.release();
+            if (distorted == null) {
+                return -1;
             }
-            ptDistance = ptMax.x - ptMin.x;
-
-            //Get submat of first half
-            Mat sampleArea = image.submat((int) p1.y - 1, (int) p1.y + 1, (int) ptMin.x, (int) (ptMin.x + ptDistance / 2) - 1);
-            avg1 = Core.mean(sampleArea).val[0];
-
-            //Get submat of second half
-            sampleArea = image.submat((int) p1.y - 1, (int) p1.y + 1, (int) (ptMin.x + ptDistance / 2), (int) ptMax.x);
-            avg2 = Core.mean(sampleArea).val[0];
-
-            return Math.abs(avg1 - avg2);
-        } else {
-            //Line as not vertical or horizontal! input was wrong
-            Log.d(TAG, "INVALID INPUT: points are not on horizontal or vertical line"
-                    + p1 + "\n" + p2 + "\n");
+            source = distorted;
         }
-        return -1;
+
+        //Two rows of sample positions, pixels outside the image are black
+        Mat map = source.reshape(2, 2);
+        Mat sampled = new Mat();
+        Imgproc.remap(image, sampled, map, new Mat(), Imgproc.INTER_LINEAR);
+        source.release();
+
+        int half = samples / 2;
+        Mat firstHalf = sampled.colRange(0, half);
+        Mat secondHalf = sampled.colRange(half, samples);
+        double avg1 = Core.mean(firstHalf).val[0];
+        double avg2 = Core.mean(secondHalf).val[0];
+        firstHalf.release();
+        secondHalf.release();
+        sampled.release();
+
+        return Math.abs(avg1 - avg2);
     }
 
 }
\ No newline at end of file
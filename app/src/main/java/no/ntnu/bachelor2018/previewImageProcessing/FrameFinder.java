@@ -1,6 +1,5 @@
 package no.ntnu.bachelor2018.previewImageProcessing;
 
-import android.util.Log;
 
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
@@ -11,13 +10,15 @@ import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
 import org.opencv.imgproc.Imgproc;
 
 import java.util.ArrayList;
 import java.util.List;
 
-import no.ntnu.bachelor2018.filmreader.ImageBufferManager;
-import no.ntnu.bachelor2018.filmreader.Preferences;
+import no.ntnu.bachelor2018.filmreader.MatPool;
+import no.ntnu.bachelor2018.filmreader.Metrics;
+import no.ntnu.bachelor2018.filmreader.PipelineConfig;
 
 /**
  * Created by Håkon Heggholmen on 13.02.2018.
@@ -26,14 +27,15 @@ import no.ntnu.bachelor2018.filmreader.Preferences;
 
 public class FrameFinder {
 
-    private int width, height;           // Width and height of the image.
+    private int width, height;           // Width and height of the image at the detection scale.
     private Mat hierarchy, threshImg;     // hierarchy(not used but required by findcontours)
-                                                    // roiImage(cropped thresholded image).
+                                                    // threshImg(thresholded search area).
     private List<MatOfPoint> contours;              // List of found contours
     private MatOfPoint2f contour2f;                 // More precise points required by approxpolyDP
     private MatOfInt hull;                          // List of non-convex points in the contour
     private List<Point> retPoints;                  // Final list of 4 corner points to return.
-    //private Rect roi;                               // Region of interest used to limit processing area.
+    private Rect roi;                               // Region of interest around the last found frame, null to search everything.
+    private int misses;                             // Frames in a row where the frame was not found in the roi.
 
     //Parameter scale constant values. Scaling linearly for now.
     //Can be extended using newtons method or other approximation functions.
@@ -47,10 +49,20 @@ public class FrameFinder {
         THRESH2A = 0.1470588235;
     private double epsilon, thresh1, thresh2;
 
+    //Half size of the full resolution window refining a corner, in pyramid level pixels.
+    //Covers the error of the coarse corner including the outward shift from the dilation.
+    private static final int REFINE_WINDOW = 3;
+    private static final TermCriteria REFINE_CRITERIA = new TermCriteria(TermCriteria.EPS | TermCriteria.MAX_ITER, 20, 0.05);
+
+    //Margin around the last found frame searched in the next frame, as a fraction of the frame size.
+    private static final double ROI_MARGIN = 0.2;
+    //Frames in a row the frame can be missing from the roi before the whole image is searched again.
+    private static final int ROI_MISSES = 3;
+
 
     public FrameFinder(){
-        //Region of interest(area to process)
-        //roi = new Rect(0, 0, width, height);
+        //Region of interest(area to process), starts with the whole image
+        roi = null;
         //Required for findcontours, but not used
         hierarchy = new Mat();
         //Initial contours
@@ -62,12 +74,19 @@ public class FrameFinder {
 
     /**
      * Used to adjust image size dependent variables.
-     * @param image
+     * @param image Full camera frame
+     * @param scale Detection scale, the thresholds follow the resolution detection runs at
      */
-    private void calibSize(Mat image){
-        if(image.width() != this.width || image.height() != this.height){
-            this.width = image.width();
-            this.height = image.height();
+    private void calibSize(Mat image, int scale){
+        int width = image.width(), height = image.height();
+        for(int s = scale; s > 1; s /= 2){
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+        }
+        if(width != this.width || height != this.height){
+            this.width = width;
+            this.height = height;
+            roi = null;
 
             //Calculate thresh1, thresh2 and epsilon for this resolution
             thresh1 = height * THRESH1A + THRESH1B;
@@ -97,31 +116,121 @@ public class FrameFinder {
 
     /**
      * Finds corners of film frame(black boarder edge corners)
+     * The frame is found on a downscaled pyramid level if set in {@link PipelineConfig#detectScale},
+     * the corners are then refined on the full resolution image.
+     * When tracking, only the area around the frame found last is searched.
      * @param image
      * @param overlay
      * @return List of found corner points
      */
     public List<Point> cornerFinder(Mat image, Overlay overlay){
+        long start = Metrics.start();
+        PipelineConfig config = PipelineConfig.get();
+        int scale = config.detectScale;
+        retPoints.clear();
+        calibSize(image, scale);
+        if(!config.trackFrame){
+            roi = null;
+        }
+
+        //Search the region of interest, or the whole image
+        Rect area = roi;
+        Mat search = area == null ? image : image.submat(area);
+        boolean found;
+        if(scale <= 1){
+            found = findQuad(search, overlay, config);
+        }
+        else{
+            //Find the frame on the pyramid level, then move the corners back to full resolution
+            Mat level = pyramidLevel(search, scale);
+            found = findQuad(level, overlay, config);
+            MatPool.release(level);
+            if(found){
+                refineCorners(search, scale);
+            }
+        }
+
+        if(area != null){
+            search.release();
+            //Move the corners from the region to image coordinates
+            for(Point pt: retPoints){
+                pt.x += area.x;
+                pt.y += area.y;
+            }
+        }
+        if(config.trackFrame){
+            track(found, image);
+        }
+
+        Metrics.record(Metrics.Stage.DETECT, start);
+        return retPoints;
+    }
+
+    /**
+     * Updates the region of interest after a search. Follows the found frame, and goes back to
+     * searching the whole image after {@link #ROI_MISSES} frames in a row without it.
+     * @param found True if the frame was found
+     * @param image Full camera frame
+     */
+    private void track(boolean found, Mat image){
+        if(found){
+            roi = expandedBounds(retPoints, image.width(), image.height());
+            misses = 0;
+        }
+        else if(roi != null && ++misses >= ROI_MISSES){
+            roi = null;
+            misses = 0;
+        }
+    }
+
+    /**
+     * Gets the bounding rectangle of the corners with a margin, limited to the image.
+     */
+    private static Rect expandedBounds(List<Point> pts, int width, int height){
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for(Point pt: pts){
+            minX = Math.min(minX, pt.x);
+            minY = Math.min(minY, pt.y);
+            maxX = Math.max(maxX, pt.x);
+            maxY = Math.max(maxY, pt.y);
+        }
+        double marginX = (maxX - minX) * ROI_MARGIN;
+        double marginY = (maxY - minY) * ROI_MARGIN;
+
+        int x = (int) Math.max(0, Math.floor(minX - marginX));
+        int y = (int) Math.max(0, Math.floor(minY - marginY));
+        int right = (int) Math.min(width, Math.ceil(maxX + marginX) + 1);
+        int bottom = (int) Math.min(height, Math.ceil(maxY + marginY) + 1);
+        return new Rect(x, y, right - x, bottom - y);
+    }
+
+    /**
+     * Finds the outer frame with canny edges and contours.
+     * @param image Image to search, the camera frame or region of interest at the detection scale
+     * @param overlay
+     * @param config
+     * @return True if four corners were added to retPoints
+     */
+    private boolean findQuad(Mat image, Overlay overlay, PipelineConfig config){
         //Init variables
-        calibSize(image);
         Point points[];
         boolean done = false;
-        retPoints.clear();
 
         //Get threshold image buffer
-        threshImg = new Mat(height,width,CvType.CV_8UC1);
+        threshImg = MatPool.acquireRegion(image.width(), image.height(), CvType.CV_8UC1);
 
-        threshROI(image,overlay);
+        threshROI(image, overlay, config);
 
         //Find outer contour
         Imgproc.findContours(threshImg, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
-        threshImg.release();
+        MatPool.release(threshImg);
         threshImg = null;
 
         //Loop through all contours
         for(MatOfPoint conto: contours){
             //TODO remove test print
-            //Filter out small contour with area less then
+            //Filter out small contour with area less then a sixth of the whole image, also in a roi
             if(conto.height() > 3 && Imgproc.contourArea(conto)>height*width/6 && !done){
 
                 conto.convertTo(contour2f,CvType.CV_32FC2);
@@ -146,7 +255,7 @@ public class FrameFinder {
         }
 
         //Draw overlay if cornerFinder is selected
-        if(Preferences.isPreviewType(GeneralImgproc.PreviewType.MARKERDETECT)){
+        if(config.isPreviewType(GeneralImgproc.PreviewType.MARKERDETECT)){
             overlay.overrideDisplayImage(image);
             if(done){
                 overlay.addPolyLine(retPoints);
@@ -158,16 +267,58 @@ public class FrameFinder {
         }
         contours.clear();
 
+        return done;
+    }
 
-        return retPoints;
+    /**
+     * Downsamples the image with a gaussian pyramid.
+     * @param image Full resolution image
+     * @param scale Downscale factor, a power of two
+     * @return The pyramid level, checked out from {@link MatPool}
+     */
+    private static Mat pyramidLevel(Mat image, int scale){
+        Mat level = image;
+        for(int s = scale; s > 1; s /= 2){
+            Mat next = MatPool.acquireRegion((level.width() + 1) / 2, (level.height() + 1) / 2, level.type());
+            Imgproc.pyrDown(level, next, next.size());
+            if(level != image){
+                MatPool.release(level);
+            }
+            level = next;
+        }
+        return level;
     }
 
-    /*public void setROI(Rect roi,Mat image){
-        //Set/reset the ROI
-        calibSize(image);
-        this.roi = roi;
-    }*/
+    /**
+     * Scales the corners found on a pyramid level to full resolution and refines them in small
+     * windows around the estimates. Corners that can not be refined keep the scaled estimate.
+     * @param image Full resolution image
+     * @param scale Downscale factor of the level the corners were found on
+     */
+    private void refineCorners(Mat image, int scale){
+        int window = REFINE_WINDOW * scale;
+        Point[] coarse = new Point[retPoints.size()];
+        for(int i = 0; i < coarse.length; i++){
+            Point pt = retPoints.get(i);
+            coarse[i] = new Point(Math.min(pt.x * scale, image.width() - 1), Math.min(pt.y * scale, image.height() - 1));
+        }
+
+        MatOfPoint2f refined = new MatOfPoint2f(coarse);
+        Imgproc.cornerSubPix(image, refined, new Size(window, window), new Size(-1, -1), REFINE_CRITERIA);
+        Point[] result = refined.toArray();
+        refined.release();
 
+        retPoints.clear();
+        for(int i = 0; i < coarse.length; i++){
+            //Keep the estimate if the refinement wandered off, e.g. to a mark inside the frame
+            if(GeneralImgproc.distance(coarse[i], result[i]) <= window){
+                retPoints.add(result[i]);
+            }
+            else{
+                retPoints.add(coarse[i]);
+            }
+        }
+    }
 
     //Constant dilation kernel
     private static final Mat DILATEKERNEL = Mat.ones(5,5,CvType.CV_8U);
@@ -176,14 +327,14 @@ public class FrameFinder {
      * Thresholds and copy's the image into a cropped format within the region of interest(ROI)
      * @param inputImage
      */
-    private void threshROI(Mat inputImage, Overlay overlay){
+    private void threshROI(Mat inputImage, Overlay overlay, PipelineConfig config){
         //Find border of frame using canny. thresh1 and thresh2 are scaled linearly
         Imgproc.Canny(inputImage,threshImg,thresh1 ,thresh2,5,true);
         //Dilate the image to make the border continuous
         Imgproc.dilate(threshImg,threshImg,DILATEKERNEL);
 
         //Display thesholded image if the preference is set.
-        if(Preferences.isPreviewType(GeneralImgproc.PreviewType.THRESHOLDED)){
+        if(config.isPreviewType(GeneralImgproc.PreviewType.THRESHOLDED)){
             overlay.overrideDisplayImage(threshImg);
         }
 
@@ -0,0 +1,173 @@
+package no.ntnu.bachelor2018.previewImageProcessing;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import no.ntnu.bachelor2018.filmreader.MatPool;
+
+/**
+ * Collects warped frames while the camera is held still, and fuses them into one image with
+ * less sensor noise than any single frame. Frames are only stacked while the frame corners in
+ * the camera image stay within a pixel of where they were for the first frame of the stack,
+ * so the warped frames line up without any further registration.
+ */
+public class FrameStacker {
+
+    //Largest corner movement in camera pixels for a frame to be stacked
+    private static final double MAX_MOTION = 1.0;
+    //Largest difference in size of the warped frames, smaller differences are resized away
+    private static final int MAX_SIZE_DIFFERENCE = 1;
+    //Largest mean pixel difference from the first frame, catches frames turned another way
+    private static final double MAX_DIFFERENCE = 40;
+
+    private Mat frames[] = new Mat[0];      // Copies of the stacked frames, checked out from MatPool
+    private int count;                      // Frames in the stack
+    private final List<Point> reference = new ArrayList<>(4);  // Corners of the first frame
+    private final Mat difference = new Mat();
+    private byte pixels[][], median[];      // Pixel values for the median, reused
+
+    /**
+     * Adds a frame to the stack. If the frame does not line up with the stack, the stack is
+     * started over with this frame.
+     *
+     * @param frame   inverted and rotated image of the frame
+     * @param corners Corners of the frame in the camera image
+     * @param depth   Number of frames to stack, at least 2. The oldest frame but the first is dropped when the stack is full
+     * @return true if the frame was added to the frames already stacked, false if the stack started over
+     */
+    public boolean add(Mat frame, List<Point> corners, int depth) {
+        if (frames.length != depth) {
+            clear();
+            frames = new Mat[depth];
+        }
+
+        boolean stacked = count > 0 && stillFrame(corners) && sameSize(frame);
+        Mat copy = null;
+        if (stacked) {
+            copy = MatPool.acquireRegion(frames[0].width(), frames[0].height(), frames[0].type());
+            if (frame.width() != copy.width() || frame.height() != copy.height()) {
+                Imgproc.resize(frame, copy, copy.size(), 0, 0, Imgproc.INTER_LINEAR);
+            } else {
+                frame.copyTo(copy);
+            }
+            Core.absdiff(copy, frames[0], difference);
+            if (Core.mean(difference).val[0] > MAX_DIFFERENCE) {
+                MatPool.release(copy);
+                stacked = false;
+            }
+        }
+
+        if (!stacked) {
+            clear();
+            copy = MatPool.acquireRegion(frame.width(), frame.height(), frame.type());
+            frame.copyTo(copy);
+            for (Point pt : corners) {
+                reference.add(new Point(pt.x, pt.y));
+            }
+        } else if (count == depth) {
+            //Drop the oldest frame, the first frame stays as the reference
+            MatPool.release(frames[1]);
+            System.arraycopy(frames, 2, frames, 1, count - 2);
+            count--;
+        }
+        frames[count++] = copy;
+        return stacked;
+    }
+
+    /**
+     * @return Number of frames in the stack
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Fuses the stacked frames.
+     *
+     * @param useMedian true for the median of every pixel, false for the mean
+     * @return The fused image, checked out from {@link MatPool}
+     */
+    public Mat fuse(boolean useMedian) {
+        Mat first = frames[0];
+        Mat fused = MatPool.acquireRegion(first.width(), first.height(), first.type());
+        if (useMedian) {
+            median(fused);
+        } else {
+            Mat sum = MatPool.acquireRegion(first.width(), first.height(), CvType.CV_32F);
+            sum.setTo(Scalar.all(0));
+            for (int i = 0; i < count; i++) {
+                Imgproc.accumulate(frames[i], sum);
+            }
+            sum.convertTo(fused, first.type(), 1.0 / count);
+            MatPool.release(sum);
+        }
+        return fused;
+    }
+
+    /**
+     * Empties the stack.
+     */
+    public void clear() {
+        for (int i = 0; i < count; i++) {
+            MatPool.release(frames[i]);
+            frames[i] = null;
+        }
+        count = 0;
+        reference.clear();
+    }
+
+    /**
+     * Median of every pixel, sorting the few values of each pixel in place.
+     */
+    private void median(Mat fused) {
+        int length = (int) fused.total();
+        if (pixels == null || pixels.length < count || pixels[0].length != length) {
+            pixels = new byte[frames.length][length];
+            median = new byte[length];
+        }
+        for (int i = 0; i < count; i++) {
+            frames[i].get(0, 0, pixels[i]);
+        }
+
+        int values[] = new int[count];
+        for (int p = 0; p < length; p++) {
+            //Insertion sort, the stack is small
+            for (int i = 0; i < count; i++) {
+                int value = pixels[i][p] & 0xFF;
+                int j = i;
+                while (j > 0 && values[j - 1] > value) {
+                    values[j] = values[j - 1];
+                    j--;
+                }
+                values[j] = value;
+            }
+            median[p] = (byte) ((values[(count - 1) / 2] + values[count / 2] + 1) / 2);
+        }
+        fused.put(0, 0, median);
+    }
+
+    private boolean stillFrame(List<Point> corners) {
+        if (corners.size() != reference.size()) {
+            return false;
+        }
+        for (int i = 0; i < corners.size(); i++) {
+            if (GeneralImgproc.distance(corners.get(i), reference.get(i)) >= MAX_MOTION) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean sameSize(Mat frame) {
+        return frame.type() == frames[0].type()
+                && Math.abs(frame.width() - frames[0].width()) <= MAX_SIZE_DIFFERENCE
+                && Math.abs(frame.height() - frames[0].height()) <= MAX_SIZE_DIFFERENCE;
+    }
+}
@@ -1,74 +1,139 @@
 package no.ntnu.bachelor2018.previewImageProcessing;
 
-import android.telecom.VideoProfile;
 
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
-import org.opencv.core.Scalar;
+import org.opencv.core.Size;
 import org.opencv.core.TermCriteria;
 import org.opencv.imgproc.Imgproc;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static java.lang.Math.abs;
 
 /**
  * Created by Håkon on 13.02.2018.
- * Used to locate the corner markers within a frame
- * Not in use due to limitations caused by time constraints in the project.
+ * Used to locate the corner markers within a frame.
+ * Not in use due to limitations caused by time constraints in the project, only the
+ * ProcessingBenchmark runs it.
+ * The marker corners are found with the ChESS detector, run over a copy of each corner area
+ * taken out of the image with one call. The benchmark shows it is fast enough to run on every
+ * frame, but it is not yet part of the frame processing.
  */
 
 public class MarkerDetection {
 
-    private final Scalar black = new Scalar(0, 0, 0);
     private final TermCriteria criteria = new TermCriteria(TermCriteria.EPS | TermCriteria.MAX_ITER, 40, 0.001);
-    //Width,height of image.
-    private int width, height;
-    //
-    private Mat mask, saddlePoints;
+    //Distance from the edge of an area where the ChESS response can not be computed
+    private static final int BORDER = 7;
+    //Radius a corner must be the strongest response within
+    private static final int NMS_RADIUS = 3;
+    //Window for the sub-pixel refinement of the markers
+    private static final Size SUBPIX_WINDOW = new Size(3, 3);
     private double maskSize = 0.15;
+    //Pixels of a corner area and their ChESS response, reused between frames
+    private byte pixels[] = new byte[0];
+    private int response[] = new int[0];
 
     public MarkerDetection() {
     }
 
     /**
-     * Used to adjust image size dependent variables.
+     * Finds corner markers.
      *
-     * @param image
+     * @param image        grayscale image of the frame
+     * @param frameCorners the four frame corners, the markers are searched for in an area inside each corner
+     * @return The four marker points in the order of the frame corners, or null if a marker was not found
      */
-    private void calibSize(Mat image) {
-        if (image.width() != this.width || image.height() != this.height) {
-            this.width = image.width();
-            this.height = image.height();
-            mask = new Mat(height, width, CvType.CV_8UC1);
-            saddlePoints = new Mat(height, width, CvType.CV_8UC1);
+    public List<Point> findMarkers(Mat image, List<Point> frameCorners) {
+        if (frameCorners.size() != 4) {
+            return null;
+        }
+
+        Rect bounds = new Rect(0, 0, image.width(), image.height());
+        List<Point> markers = new ArrayList<>(4);
+        for (Rect mask : maskFinder(frameCorners)) {
+            Rect area = intersect(mask, bounds);
+            if (area.width <= 2 * BORDER || area.height <= 2 * BORDER) {
+                return null;
+            }
+            Point marker = strongestCorner(image, area);
+            if (marker == null) {
+                return null;
+            }
+            markers.add(marker);
         }
+
+        //Refine the markers with sub-pixel accuracy
+        MatOfPoint2f points = new MatOfPoint2f();
+        points.fromList(markers);
+        Imgproc.cornerSubPix(image, points, SUBPIX_WINDOW, new Size(-1, -1), criteria);
+        markers = points.toList();
+        points.release();
+        return markers;
     }
 
     /**
-     * Finds corner markers.
+     * Finds the strongest ChESS corner in an area of the image.
      *
-     * @param image
-     * @return
+     * @return The corner in image coordinates, or null if there is no corner in the area
      */
-    public boolean findMarkers(Mat image, List<Point> frameCorners) {
-        //TODO(hÃ¥kon) return the marker points.
-        calibSize(image);
-
-        if (frameCorners.size() == 4) {
-            //Find mask for the image corners
-            corner_detect5(image, saddlePoints, maskFinder(frameCorners));
-            //saddlePoints.copyTo(overlayTest);
-            return true;
+    private Point strongestCorner(Mat image, Rect area) {
+        int w = area.width, h = area.height;
+        if (pixels.length < w * h) {
+            pixels = new byte[w * h];
+            response = new int[w * h];
+        }
+        //Copy the whole area out of the image at once
+        Mat roi = image.submat(area);
+        roi.get(0, 0, pixels);
+        roi.release();
+
+        corner_detect5(pixels, w, h, response);
+
+        //Non-maximum suppression, a corner must be the strongest response around it. The window
+        //must lie within the computed responses, so corners cut by the edge of the area are skipped.
+        int best = -1, bestResponse = 0;
+        int edge = BORDER + NMS_RADIUS;
+        for (int y = edge; y < h - edge; y++) {
+            for (int x = edge; x < w - edge; x++) {
+                int value = response[y * w + x];
+                if (value > bestResponse && isLocalMax(w, x, y, value)) {
+                    best = y * w + x;
+                    bestResponse = value;
+                }
+            }
+        }
+        if (best < 0) {
+            return null;
         }
+        return new Point(area.x + best % w, area.y + best / w);
+    }
 
-        return false;
+    private boolean isLocalMax(int w, int x, int y, int value) {
+        for (int j = y - NMS_RADIUS; j <= y + NMS_RADIUS; j++) {
+            for (int i = x - NMS_RADIUS; i <= x + NMS_RADIUS; i++) {
+                int other = response[j * w + i];
+                //Of equal responses only the first one is kept
+                if (other > value || (other == value && j * w + i < y * w + x)) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
+    private static Rect intersect(Rect a, Rect b) {
+        int x = Math.max(a.x, b.x), y = Math.max(a.y, b.y);
+        int right = Math.min(a.x + a.width, b.x + b.width);
+        int bottom = Math.min(a.y + a.height, b.y + b.height);
+        return new Rect(x, y, Math.max(0, right - x), Math.max(0, bottom - y));
+    }
 
     /**
      * Gets non rotated rectangles around the image corners
@@ -134,68 +199,56 @@ public class MarkerDetection {
      * Perform the ChESS corner detection algorithm with a 5 px sampling radius
      * Original code from
      * Modified to work in java
-     * Modified to work within rectangles
+     * Modified to work on an area copied out of the image
      *
-     * @param image  input image
-     * @param output output response image
-     * @param mask
+     * @param image    pixels of the area, row by row
+     * @param w        width of the area
+     * @param h        height of the area
+     * @param response output response, 0 within {@link #BORDER} of the edges
      */
-    private void corner_detect5(final Mat image, Mat output, List<Rect> mask) {
-        int x, y;
-        Mat currentROI, outputROI;
-        double circular_sample[] = new double[16];
-        output.setTo(black);
-
-        for (Rect roi : mask) {
-
-            //Set current region of interest(Current corner mask)
-            currentROI = image.submat(roi);
-            outputROI = output.submat(roi);
-            for (y = 7; y < currentROI.height() - 7; y++) {
-                for (x = 7; x < currentROI.width() - 7; x++) {
-                    //Could not find a way to access image as an array. the used get method is not efficient.
-                    //TODO(hÃ¥kon) optimize code if efficient mat to array is found.
-                    //circular_sample[2] =    image.get(x - 2, y - 5)[0];
-                    circular_sample[2] = currentROI.get(y - 5, x - 2)[0];
-                    circular_sample[1] = currentROI.get(y, x - 2)[0];
-                    circular_sample[0] = currentROI.get(y - 5, x + 2)[0];
-                    circular_sample[8] = currentROI.get(y + 5, x - 2)[0];
-                    circular_sample[9] = currentROI.get(y + 5, x)[0];
-                    circular_sample[10] = currentROI.get(y + 5, x + 2)[0];
-                    circular_sample[3] = currentROI.get(y - 4, x - 4)[0];
-                    circular_sample[15] = currentROI.get(y - 4, x + 4)[0];
-                    circular_sample[7] = currentROI.get(y + 4, x - 4)[0];
-                    circular_sample[11] = currentROI.get(y + 4, x + 4)[0];
-                    circular_sample[4] = currentROI.get(y - 2, x - 5)[0];
-                    circular_sample[14] = currentROI.get(y - 2, x + 5)[0];
-                    circular_sample[6] = currentROI.get(y + 2, x - 5)[0];
-                    circular_sample[12] = currentROI.get(y + 2, x + 5)[0];
-                    circular_sample[5] = currentROI.get(y, x - 5)[0];
-                    circular_sample[13] = currentROI.get(y, x + 5)[0];
-
-                    // purely horizontal local_mean samples
-                    double local_mean = (currentROI.get(y, x - 1)[0] + currentROI.get(y, x)[0] + currentROI.get(y, x + 1)[0]) * 16 / 3;
-
-                    long sum_response = 0;
-                    long diff_response = 0;
-                    long mean = 0;
-
-                    int sub_idx;
-                    for (sub_idx = 0; sub_idx < 4; ++sub_idx) {
-                        double a = circular_sample[sub_idx];
-                        double b = circular_sample[sub_idx + 4];
-                        double c = circular_sample[sub_idx + 8];
-                        double d = circular_sample[sub_idx + 12];
-
-                        sum_response += abs(a - b + c - d);
-                        diff_response += abs(a - c) + abs(b - d);
-                        mean += a + b + c + d;
-                    }
-                    outputROI.put(y, x, (double) (sum_response - diff_response - abs(mean - local_mean)));
+    private static void corner_detect5(final byte image[], int w, int h, int response[]) {
+        int circular_sample[] = new int[16];
+        Arrays.fill(response, 0, w * h, 0);
+
+        for (int y = BORDER; y < h - BORDER; y++) {
+            for (int x = BORDER; x < w - BORDER; x++) {
+                int p = y * w + x;
+                circular_sample[2] = image[p - 2 - 5 * w] & 0xFF;
+                circular_sample[1] = image[p - 5 * w] & 0xFF;
+                circular_sample[0] = image[p + 2 - 5 * w] & 0xFF;
+                circular_sample[8] = image[p - 2 + 5 * w] & 0xFF;
+                circular_sample[9] = image[p + 5 * w] & 0xFF;
+                circular_sample[10] = image[p + 2 + 5 * w] & 0xFF;
+                circular_sample[3] = image[p - 4 - 4 * w] & 0xFF;
+                circular_sample[15] = image[p + 4 - 4 * w] & 0xFF;
+                circular_sample[7] = image[p - 4 + 4 * w] & 0xFF;
+                circular_sample[11] = image[p + 4 + 4 * w] & 0xFF;
+                circular_sample[4] = image[p - 5 - 2 * w] & 0xFF;
+                circular_sample[14] = image[p + 5 - 2 * w] & 0xFF;
+                circular_sample[6] = image[p - 5 + 2 * w] & 0xFF;
+                circular_sample[12] = image[p + 5 + 2 * w] & 0xFF;
+                circular_sample[5] = image[p - 5] & 0xFF;
+                circular_sample[13] = image[p + 5] & 0xFF;
+
+                // purely horizontal local_mean samples
+                int local_mean = ((image[p - 1] & 0xFF) + (image[p] & 0xFF) + (image[p + 1] & 0xFF)) * 16 / 3;
+
+                int sum_response = 0;
+                int diff_response = 0;
+                int mean = 0;
+
+                for (int sub_idx = 0; sub_idx < 4; ++sub_idx) {
+                    int a = circular_sample[sub_idx];
+                    int b = circular_sample[sub_idx + 4];
+                    int c = circular_sample[sub_idx + 8];
+                    int d = circular_sample[sub_idx + 12];
+
+                    sum_response += abs(a - b + c - d);
+                    diff_response += abs(a - c) + abs(b - d);
+                    mean += a + b + c + d;
                 }
+                response[p] = sum_response - diff_response - abs(mean - local_mean);
             }
         }
     }
 }
-
-
@@ -5,7 +5,6 @@ package no.ntnu.bachelor2018.previewImageProcessing;
  */
 
 import android.app.Activity;
-import android.provider.ContactsContract;
 import android.util.Log;
 import android.widget.TextView;
 
@@ -23,6 +22,7 @@ import java.util.Vector;
 
 import filmreader.bacheloroppg.ntnu.no.filmreader.R;
 import no.ntnu.bachelor2018.filmreader.MainActivity;
+import no.ntnu.bachelor2018.filmreader.Metrics;
 import static android.content.ContentValues.TAG;
 
 
@@ -32,9 +32,6 @@ import static android.content.ContentValues.TAG;
  */
 public class Overlay {
     // used to show an image that is not done processing.
-    private static final int FRAMESAMPLES = 10;                  //frame count to average fps over
-    private static long[] fpsTimes = new long[FRAMESAMPLES];    //time samples
-    private static int currentFrame = 0;                        //current frame sample index
     private List<TextOverlay> text;             // List of text(s) to draw on the overlay
     private List<PolyLine> lines;           // List of lines to draw on the overlay
     private List<RectDraw> rects;           // List of rectangles to draw on the overlay
@@ -49,38 +46,22 @@ public class Overlay {
         lines = new Vector<>();
         rects = new Vector<>();
         imageOverride = null;
-        activity = (Activity)MainActivity.context;
-        textView = activity.findViewById(R.id.processingText);
+        //No views to update when running without the main activity
+        if (MainActivity.context instanceof Activity) {
+            activity = (Activity) MainActivity.context;
+            textView = (TextView) activity.findViewById(R.id.processingText);
+        }
     }
 
     /**
-     * Used to retrieve fps and update with new frame timing.
+     * Used to retrieve the frame rate measured by {@link Metrics}.
      *
-     * @return Average fps over a number of samples
+     * @return Frames per second
      */
     private static String fpsNewFrame() {
-        fpsTimes[currentFrame] = System.currentTimeMillis();
         DecimalFormat format = new DecimalFormat("#.##");
         format.setRoundingMode(RoundingMode.CEILING);
-
-        if (fpsTimes[FRAMESAMPLES - 1] != 0) {    //Get average fps over a number of samples
-            double avg = 0;
-            //Calculate frame delay sum in MS
-            for (int i = 0; i < FRAMESAMPLES - 1; i++) {
-                avg += fpsTimes[(i + currentFrame + 2) % FRAMESAMPLES] - fpsTimes[(i + currentFrame + 1) % FRAMESAMPLES];
-            }
-            if(avg == 0){
-                return "0";
-            }
-            avg /= FRAMESAMPLES - 1;         //divide by sample size -1(average delay in MS)
-            avg /= 1000;                    //convert to seconds
-            avg = 1 / avg;                 //convert to frames per second instead of avg delay
-            currentFrame = (currentFrame + 1) % FRAMESAMPLES;
-            return format.format(avg);
-        }
-        currentFrame = (currentFrame + 1) % FRAMESAMPLES;
-        return "-1";
-
+        return format.format(Metrics.frameRate());
     }
 
     /**
@@ -168,6 +149,9 @@ public class Overlay {
 
         private void drawText(Mat inputImage) {
             //Imgproc.putText(inputImage, this.text, this.pos, Core.FONT_HERSHEY_PLAIN, 5, red, 10);
+            if (activity == null) {
+                return;
+            }
             activity.runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
@@ -0,0 +1,180 @@
+package no.ntnu.bachelor2018.previewImageProcessing;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Collections;
+import java.util.Locale;
+
+import no.ntnu.bachelor2018.filmreader.MatPool;
+
+/**
+ * Scores the warped frame before it is sent to unboxing, so blurred, smeared or badly exposed
+ * frames are not given to the native decoder that can not read them anyway.
+ * The sharpness and border thresholds follow the best recent frames, as the values depend
+ * on the camera, the light and the film.
+ */
+public class QualityGate {
+
+    //Frames scoring below this part of the recent best are rejected
+    private static final double RELATIVE_THRESHOLD = 0.5;
+    //The recent best is lowered by this factor each frame, so it follows changes in the scene
+    private static final double PEAK_DECAY = 0.98;
+    //Largest part of the frame allowed to be black or white clipped
+    private static final double MAX_CLIPPED = 0.3;
+    //Pixel values counted as clipped, at or below the low and at or above the high value
+    private static final int CLIP_LOW = 2, CLIP_HIGH = 253;
+    //Half width of the band around the frame border, as a part of the image size
+    private static final double BORDER_BAND = 0.01;
+    //Position of the frame border in the warped image, the margin added by FinalProcessing
+    private static final double BORDER_POSITION =
+            FinalProcessing.marginCoefficient / (1 + 2 * FinalProcessing.marginCoefficient);
+
+    private double peakSharpness, peakEnergy;       // Decaying best scores of recent frames
+    // Rising lowest scores of recent frames that decoded
+    private double decodedSharpness = Double.POSITIVE_INFINITY, decodedEnergy = Double.POSITIVE_INFINITY;
+    private final Mat gradient = new Mat();         // Sobel of a border band, reused
+    private final Mat gradientAbs = new Mat();      // Absolute values of the Sobel, reused
+    private final Mat hist = new Mat();             // Histogram of the frame, reused
+    private final Mat noMask = new Mat();           // Histogram parameters, the same for every frame
+    private final MatOfInt histChannels = new MatOfInt(0), histSize = new MatOfInt(256);
+    private final MatOfFloat histRange = new MatOfFloat(0, 256);
+
+    /**
+     * The quality of one frame.
+     */
+    public static class Score {
+        public final double sharpness;      // Variance of the Laplacian of the whole image
+        public final double borderEnergy;   // Mean gradient across the frame border
+        public final double clipped;        // Part of the frame that is black or white clipped, 0 to 1
+
+        Score(double sharpness, double borderEnergy, double clipped) {
+            this.sharpness = sharpness;
+            this.borderEnergy = borderEnergy;
+            this.clipped = clipped;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "sharpness %.1f border %.1f clipped %.3f",
+                    sharpness, borderEnergy, clipped);
+        }
+    }
+
+    /**
+     * Scores a warped frame.
+     *
+     * @param image inverted and rotated grayscale image of the frame, with the margin from warping
+     * @return The scores of the image
+     */
+    public Score score(Mat image) {
+        int width = image.width(), height = image.height();
+        int left = (int) Math.round(width * BORDER_POSITION);
+        int top = (int) Math.round(height * BORDER_POSITION);
+        Rect frame = new Rect(left, top, width - 2 * left, height - 2 * top);
+        return new Score(sharpness(image), borderEnergy(image, frame), clipped(image, frame));
+    }
+
+    /**
+     * Checks a score against the thresholds, and lets the recent best follow it.
+     *
+     * @param score Score of the frame
+     * @return True if the frame should be sent to unboxing
+     */
+    public boolean accept(Score score) {
+        peakSharpness = Math.max(score.sharpness, peakSharpness * PEAK_DECAY);
+        peakEnergy = Math.max(score.borderEnergy, peakEnergy * PEAK_DECAY);
+        //The floor from decoded frames rises as fast as the peak falls, so one lucky decode of
+        //a poor frame does not lower the thresholds for the rest of the session
+        decodedSharpness /= PEAK_DECAY;
+        decodedEnergy /= PEAK_DECAY;
+
+        //A frame as good as one that decoded recently is never rejected
+        double minSharpness = Math.min(peakSharpness * RELATIVE_THRESHOLD, decodedSharpness);
+        double minEnergy = Math.min(peakEnergy * RELATIVE_THRESHOLD, decodedEnergy);
+        return score.clipped <= MAX_CLIPPED && score.sharpness >= minSharpness && score.borderEnergy >= minEnergy;
+    }
+
+    /**
+     * Tells the gate that a frame with this score decoded.
+     *
+     * @param score Score of the decoded frame
+     */
+    public void decoded(Score score) {
+        decodedSharpness = Math.min(decodedSharpness, score.sharpness);
+        decodedEnergy = Math.min(decodedEnergy, score.borderEnergy);
+    }
+
+    /**
+     * Variance of the Laplacian, low when the image is out of focus or smeared by motion.
+     */
+    private static double sharpness(Mat image) {
+        Mat laplacian = MatPool.acquireRegion(image.width(), image.height(), CvType.CV_16S);
+        Imgproc.Laplacian(image, laplacian, CvType.CV_16S);
+        MatOfDouble mean = new MatOfDouble(), stddev = new MatOfDouble();
+        Core.meanStdDev(laplacian, mean, stddev);
+        MatPool.release(laplacian);
+        double deviation = stddev.toArray()[0];
+        mean.release();
+        stddev.release();
+        return deviation * deviation;
+    }
+
+    /**
+     * Mean gradient across the four sides of the frame border. The border is a sharp edge
+     * between film and background, so it is soft when the frame is blurred or badly warped.
+     */
+    private double borderEnergy(Mat image, Rect frame) {
+        int band = Math.max(2, (int) Math.round(Math.min(image.width(), image.height()) * BORDER_BAND));
+        double sum = 0;
+        //Left and right side, gradient along x
+        sum += bandGradient(image, new Rect(frame.x - band, frame.y, 2 * band, frame.height), 1, 0);
+        sum += bandGradient(image, new Rect(frame.x + frame.width - band, frame.y, 2 * band, frame.height), 1, 0);
+        //Top and bottom side, gradient along y
+        sum += bandGradient(image, new Rect(frame.x, frame.y - band, frame.width, 2 * band), 0, 1);
+        sum += bandGradient(image, new Rect(frame.x, frame.y + frame.height - band, frame.width, 2 * band), 0, 1);
+        return sum / 4;
+    }
+
+    private double bandGradient(Mat image, Rect band, int dx, int dy) {
+        //Keep the band inside the image
+        int x = Math.max(0, band.x), y = Math.max(0, band.y);
+        int right = Math.min(image.width(), band.x + band.width);
+        int bottom = Math.min(image.height(), band.y + band.height);
+        if (right - x < 3 || bottom - y < 3) {
+            return 0;
+        }
+        Mat area = image.submat(new Rect(x, y, right - x, bottom - y));
+        Imgproc.Sobel(area, gradient, CvType.CV_16S, dx, dy);
+        Core.convertScaleAbs(gradient, gradientAbs);
+        double energy = Core.mean(gradientAbs).val[0];
+        area.release();
+        return energy;
+    }
+
+    /**
+     * Part of the frame that is at the ends of the histogram, where the data cells can not be told apart.
+     */
+    private double clipped(Mat image, Rect frame) {
+        Mat area = image.submat(frame);
+        Imgproc.calcHist(Collections.singletonList(area), histChannels, noMask, hist, histSize, histRange);
+        area.release();
+        float bins[] = new float[256];
+        hist.get(0, 0, bins);
+
+        double clipped = 0;
+        for (int i = 0; i <= CLIP_LOW; i++) {
+            clipped += bins[i];
+        }
+        for (int i = CLIP_HIGH; i < bins.length; i++) {
+            clipped += bins[i];
+        }
+        return clipped / frame.area();
+    }
+}
@@ -0,0 +1,104 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Percentiles and bucket limits of {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void emptySnapshotIsZero() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.count);
+        assertEquals(0, snapshot.mean);
+        assertEquals(0, snapshot.p50);
+        assertEquals(0, snapshot.p99);
+        assertEquals(0, snapshot.max);
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketWidth() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * MS);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.count);
+        assertEquals(500 * MS + MS / 2, snapshot.mean);
+        assertEquals(1000 * MS, snapshot.max);
+        assertWithinBucket(500 * MS, snapshot.p50);
+        assertWithinBucket(950 * MS, snapshot.p95);
+        assertWithinBucket(990 * MS, snapshot.p99);
+    }
+
+    @Test
+    public void percentilesAreNeverAboveTheMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3 * MS);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(3 * MS, snapshot.p50);
+        assertEquals(3 * MS, snapshot.p99);
+        assertEquals(3 * MS, snapshot.max);
+    }
+
+    @Test
+    public void latenciesBelowOneMicrosecondShareTheFirstBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(999);
+        histogram.record(2 * MS);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(3, snapshot.count);
+        // The first bucket ends at 1 microsecond
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1), snapshot.p50);
+    }
+
+    @Test
+    public void latenciesAboveTheLastBucketAreCounted() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long hour = TimeUnit.HOURS.toNanos(1);
+        histogram.record(hour);
+        histogram.record(hour);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.count);
+        assertEquals(hour, snapshot.max);
+        // The last bucket holds everything above about 3 minutes, its limit is reported
+        assertTrue(snapshot.p50 >= TimeUnit.MINUTES.toNanos(2) && snapshot.p50 < hour);
+    }
+
+    @Test
+    public void negativeLatenciesAreIgnored() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5 * MS);
+        histogram.reset();
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, snapshot.count);
+        assertEquals(0, snapshot.max);
+        assertEquals(0, snapshot.p99);
+    }
+
+    /**
+     * Checks that a percentile is the limit of the bucket holding the expected latency,
+     * at most one bucket width (10%) above it.
+     */
+    private static void assertWithinBucket(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected * 1.1);
+    }
+}
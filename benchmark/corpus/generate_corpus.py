@@ -0,0 +1,93 @@
+#!/usr/bin/env python3
+"""
+Generates the synthetic frame corpus used by the benchmarks.
+
+Each frame is a grayscale camera view of a film frame: a dark, slightly skewed quad on
+lighter film base, with a block pattern in the data area. The quad corners are fixed
+fractions of the image size (FrameCorpus.CORNERS in the benchmarks).
+Replace the images with recorded frames of the same names to benchmark real captures.
+
+Usage: generate_corpus.py <output directory>
+"""
+import random
+import struct
+import sys
+import zlib
+
+RESOLUTIONS = [(1280, 720), (1920, 1080), (4000, 3000)]
+
+# Corners of the film frame as fractions of the image size: top left, top right, bottom right, bottom left
+CORNERS = [(0.22, 0.14), (0.79, 0.17), (0.77, 0.86), (0.20, 0.83)]
+# Data area as fractions of the image size: left, top, right, bottom
+DATA_AREA = (0.27, 0.22, 0.72, 0.78)
+
+BACKGROUND = 120
+FRAME = 35
+DATA_LIGHT = 210
+
+
+def quad_span(corners, y):
+    """Gets the first and last x inside the convex quad on row y, or None."""
+    xs = []
+    for i in range(4):
+        (x0, y0), (x1, y1) = corners[i], corners[(i + 1) % 4]
+        if y0 == y1:
+            continue
+        if min(y0, y1) <= y <= max(y0, y1):
+            xs.append(x0 + (y - y0) * (x1 - x0) / (y1 - y0))
+    if len(xs) < 2:
+        return None
+    return int(round(min(xs))), int(round(max(xs)))
+
+
+def frame_rows(width, height):
+    corners = [(fx * width, fy * height) for fx, fy in CORNERS]
+    left, top, right, bottom = (int(DATA_AREA[0] * width), int(DATA_AREA[1] * height),
+                                int(DATA_AREA[2] * width), int(DATA_AREA[3] * height))
+    block = max(2, height // 180)
+    rng = random.Random(width * height)
+    pattern = None
+
+    for y in range(height):
+        row = bytearray([BACKGROUND]) * width
+        span = quad_span(corners, y)
+        if span is not None:
+            x0, x1 = max(0, span[0]), min(width - 1, span[1])
+            row[x0:x1 + 1] = bytes([FRAME]) * (x1 - x0 + 1)
+
+        if top <= y < bottom:
+            # A new row of random blocks
+            if pattern is None or (y - top) % block == 0:
+                pattern = bytearray()
+                for _ in range(0, right - left, block):
+                    pattern += bytes([DATA_LIGHT if rng.random() < 0.5 else FRAME]) * block
+                pattern = pattern[:right - left]
+            row[left:right] = pattern
+        yield bytes(row)
+
+
+def write_png(path, width, height, rows):
+    def chunk(kind, data):
+        return struct.pack(">I", len(data)) + kind + data + struct.pack(">I", zlib.crc32(kind + data) & 0xffffffff)
+
+    compressor = zlib.compressobj(9)
+    data = []
+    previous = bytes(width)
+    for row in rows:
+        # Up filter, repeated rows compress to almost nothing
+        filtered = bytes((a - b) & 0xff for a, b in zip(row, previous)) if row != previous else bytes(width)
+        data.append(compressor.compress(b"\x02" + filtered))
+        previous = row
+    data.append(compressor.flush())
+
+    with open(path, "wb") as output:
+        output.write(b"\x89PNG\r\n\x1a\n")
+        output.write(chunk(b"IHDR", struct.pack(">IIBBBBB", width, height, 8, 0, 0, 0, 0)))
+        output.write(chunk(b"IDAT", b"".join(data)))
+        output.write(chunk(b"IEND", b""))
+
+
+if __name__ == "__main__":
+    directory = sys.argv[1] if len(sys.argv) > 1 else "."
+    for width, height in RESOLUTIONS:
+        write_png("%s/frame_%dx%d.png" % (directory, width, height), width, height, frame_rows(width, height))
@@ -0,0 +1,83 @@
+package no.ntnu.bachelor2018.benchmark;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Size;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.bachelor2018.previewImageProcessing.Calibration;
+
+/**
+ * Benchmarks of the undistortion done for every frame once the camera is calibrated,
+ * and of creating the undistortion maps. Uses a typical phone camera with mild barrel
+ * distortion instead of a saved calibration. Fixed point maps are compared with float maps.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CalibrationBenchmark {
+
+    @State(Scope.Thread)
+    public static class Maps {
+        @Param({"true", "false"})
+        public boolean fixedPoint;
+
+        Mat work;
+        Mat cameraMatrix;
+        Mat distCoeffs;
+        Mat newCameraMatrix;
+        Size size;
+        Mat[] maps;
+
+        @Setup
+        public void create(FrameCorpus corpus) {
+            work = new Mat();
+            size = corpus.frame.size();
+
+            double focal = 0.9 * size.width;
+            cameraMatrix = Mat.eye(3, 3, CvType.CV_64FC1);
+            cameraMatrix.put(0, 0, focal);
+            cameraMatrix.put(1, 1, focal);
+            cameraMatrix.put(0, 2, size.width / 2);
+            cameraMatrix.put(1, 2, size.height / 2);
+            distCoeffs = new MatOfDouble(-0.05, 0.01, 0, 0, 0);
+            newCameraMatrix = Calib3d.getOptimalNewCameraMatrix(cameraMatrix, distCoeffs, size, 1);
+
+            maps = Calibration.createUndistortMaps(cameraMatrix, distCoeffs, newCameraMatrix, size, fixedPoint);
+        }
+
+        @TearDown
+        public void release() {
+            work.release();
+            maps[0].release();
+            maps[1].release();
+        }
+    }
+
+    @Benchmark
+    public Mat undistort(FrameCorpus corpus, Maps maps) {
+        corpus.frame.copyTo(maps.work);
+        Calibration.undistort(maps.work, maps.maps[0], maps.maps[1]);
+        return maps.work;
+    }
+
+    @Benchmark
+    public Mat[] createUndistortMaps(Maps maps) {
+        Mat[] created = Calibration.createUndistortMaps(maps.cameraMatrix, maps.distCoeffs,
+                maps.newCameraMatrix, maps.size, maps.fixedPoint);
+        created[0].release();
+        created[1].release();
+        return created;
+    }
+}
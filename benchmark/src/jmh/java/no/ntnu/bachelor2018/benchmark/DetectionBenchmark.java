@@ -0,0 +1,58 @@
+package no.ntnu.bachelor2018.benchmark;
+
+import org.opencv.core.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.bachelor2018.filmreader.PipelineConfig;
+import no.ntnu.bachelor2018.previewImageProcessing.FrameFinder;
+import no.ntnu.bachelor2018.previewImageProcessing.Overlay;
+
+/**
+ * Benchmarks of frame detection at every detection scale, full resolution and the
+ * half and quarter resolution pyramid levels with corner refinement.
+ * With tracking the frame is searched around the corners found in the previous invocation,
+ * like when the phone is held still over the film.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class DetectionBenchmark {
+
+    @Param({"1", "2", "4"})
+    public int detectScale;
+
+    @Param({"false", "true"})
+    public boolean trackFrame;
+
+    private FrameFinder finder;
+
+    @Setup
+    public void configure() {
+        PipelineConfig defaults = PipelineConfig.DEFAULTS;
+        PipelineConfig.set(new PipelineConfig(defaults.previewType, defaults.calibrate, defaults.saveProcessed,
+                defaults.calibCorners, defaults.calibBoards, detectScale, trackFrame,
+                defaults.stackFrames, defaults.stackMedian, defaults.fusedWarp));
+        finder = new FrameFinder();
+    }
+
+    @TearDown
+    public void restore() {
+        PipelineConfig.set(PipelineConfig.DEFAULTS);
+    }
+
+    @Benchmark
+    public List<Point> cornerFinder(FrameCorpus corpus) {
+        return finder.cornerFinder(corpus.frame, new Overlay());
+    }
+}
@@ -0,0 +1,95 @@
+package no.ntnu.bachelor2018.benchmark;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Point;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The checked in frame corpus, one grayscale camera frame for every benchmarked resolution.
+ * The frames are created by corpus/generate_corpus.py, the film frame corners are at fixed
+ * fractions of the frame size so benchmarks after detection can run without detecting them.
+ */
+@State(Scope.Benchmark)
+public class FrameCorpus {
+
+    // Corners of the film frame as fractions of the frame size: top left, top right, bottom right, bottom left
+    private static final double[][] CORNERS = {{0.22, 0.14}, {0.79, 0.17}, {0.77, 0.86}, {0.20, 0.83}};
+
+    static {
+        nu.pattern.OpenCV.loadShared();
+    }
+
+    @Param({"720p", "1080p", "12MP"})
+    public String resolution;
+
+    public Mat frame;               // Grayscale frame, must not be changed by the benchmarks
+    public List<Point> corners;     // Corners of the film frame in the frame
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        frame = readFrame(fileName(resolution));
+        corners = new ArrayList<>(4);
+        for (double[] corner : CORNERS) {
+            corners.add(new Point(Math.round(corner[0] * frame.width()), Math.round(corner[1] * frame.height())));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void release() {
+        frame.release();
+    }
+
+    /**
+     * @return A new list with the corners of the film frame, for code that changes the list
+     */
+    public List<Point> copyCorners() {
+        return new ArrayList<>(corners);
+    }
+
+    private static String fileName(String resolution) {
+        switch (resolution) {
+            case "720p":
+                return "frame_1280x720.png";
+            case "1080p":
+                return "frame_1920x1080.png";
+            case "12MP":
+                return "frame_4000x3000.png";
+            default:
+                throw new IllegalArgumentException("Unknown resolution " + resolution);
+        }
+    }
+
+    private static Mat readFrame(String name) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try (InputStream input = FrameCorpus.class.getResourceAsStream("/corpus/" + name)) {
+            if (input == null) {
+                throw new IOException("Missing corpus frame " + name);
+            }
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                data.write(buffer, 0, read);
+            }
+        }
+        MatOfByte encoded = new MatOfByte(data.toByteArray());
+        Mat frame = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_GRAYSCALE);
+        encoded.release();
+        if (frame.empty()) {
+            throw new IOException("Could not decode corpus frame " + name);
+        }
+        return frame;
+    }
+}
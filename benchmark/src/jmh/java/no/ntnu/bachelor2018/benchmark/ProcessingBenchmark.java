@@ -0,0 +1,156 @@
+package no.ntnu.bachelor2018.benchmark;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.bachelor2018.filmreader.MatPool;
+import no.ntnu.bachelor2018.filmreader.Reader;
+import no.ntnu.bachelor2018.previewImageProcessing.FinalProcessing;
+import no.ntnu.bachelor2018.previewImageProcessing.FrameFinder;
+import no.ntnu.bachelor2018.previewImageProcessing.FrameStacker;
+import no.ntnu.bachelor2018.previewImageProcessing.MarkerDetection;
+import no.ntnu.bachelor2018.previewImageProcessing.Overlay;
+import no.ntnu.bachelor2018.previewImageProcessing.QualityGate;
+
+/**
+ * Benchmarks of the per frame processing steps, and of a whole frame through {@link Reader}.
+ * Steps that draw onto the frame work on a copy, the cost of the copy alone is
+ * measured by {@link #copyFrame(FrameCorpus, Buffers)}.
+ * Decoding is left out as it needs the native library, only the Java side up to the
+ * decoder is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProcessingBenchmark {
+
+    // Frames stacked by the stacking benchmarks
+    private static final int STACK_FRAMES = 3;
+
+    /**
+     * Processing objects and buffers owned by one benchmark thread, reused between invocations
+     * like the capture workers do.
+     */
+    @State(Scope.Thread)
+    public static class Buffers {
+        Mat work;
+        FrameFinder finder;
+        MarkerDetection markers;
+        FinalProcessing finalProc;
+        QualityGate gate;
+        FrameStacker stacker;
+        Reader reader;
+
+        @Setup
+        public void create() {
+            work = new Mat();
+            finder = new FrameFinder();
+            markers = new MarkerDetection();
+            finalProc = new FinalProcessing();
+            gate = new QualityGate();
+            stacker = new FrameStacker();
+            // No pipeline and no calibration, the whole frame is processed on this thread
+            reader = new Reader(null, false);
+        }
+
+        @TearDown
+        public void release() {
+            work.release();
+            stacker.clear();
+        }
+    }
+
+    /**
+     * The corpus frame warped like before unboxing.
+     */
+    @State(Scope.Thread)
+    public static class Warped {
+        Mat image;
+
+        @Setup
+        public void warp(FrameCorpus corpus) {
+            image = new FinalProcessing().warpImage(corpus.frame, corpus.corners,
+                    corpus.frame.width(), corpus.frame.height(), null);
+        }
+
+        @TearDown
+        public void release() {
+            MatPool.release(image);
+        }
+    }
+
+    @Benchmark
+    public Mat copyFrame(FrameCorpus corpus, Buffers buffers) {
+        corpus.frame.copyTo(buffers.work);
+        return buffers.work;
+    }
+
+    @Benchmark
+    public List<Point> cornerFinder(FrameCorpus corpus, Buffers buffers) {
+        return buffers.finder.cornerFinder(corpus.frame, new Overlay());
+    }
+
+    @Benchmark
+    public List<Point> findMarkers(FrameCorpus corpus, Buffers buffers) {
+        return buffers.markers.findMarkers(corpus.frame, corpus.copyCorners());
+    }
+
+    @Benchmark
+    public Mat warpImage(FrameCorpus corpus, Buffers buffers) {
+        Mat rotated = buffers.finalProc.warpImage(corpus.frame, corpus.corners,
+                corpus.frame.width(), corpus.frame.height(), null);
+        MatPool.release(rotated);
+        return rotated;
+    }
+
+    @Benchmark
+    public QualityGate.Score scoreQuality(Warped warped, Buffers buffers) {
+        return buffers.gate.score(warped.image);
+    }
+
+    @Benchmark
+    public Mat stackMean(FrameCorpus corpus, Warped warped, Buffers buffers) {
+        return stack(corpus, warped, buffers, false);
+    }
+
+    @Benchmark
+    public Mat stackMedian(FrameCorpus corpus, Warped warped, Buffers buffers) {
+        return stack(corpus, warped, buffers, true);
+    }
+
+    /**
+     * Stacks {@link #STACK_FRAMES} copies of the warped frame and fuses them.
+     */
+    private static Mat stack(FrameCorpus corpus, Warped warped, Buffers buffers, boolean median) {
+        for (int i = 0; i < STACK_FRAMES; i++) {
+            buffers.stacker.add(warped.image, corpus.corners, STACK_FRAMES);
+        }
+        Mat fused = buffers.stacker.fuse(median);
+        buffers.stacker.clear();
+        MatPool.release(fused);
+        return fused;
+    }
+
+    @Benchmark
+    public Mat finalizeImage(FrameCorpus corpus, Buffers buffers) {
+        corpus.frame.copyTo(buffers.work);
+        buffers.finalProc.finalizeImage(buffers.work, corpus.copyCorners(), new Overlay());
+        return buffers.work;
+    }
+
+    @Benchmark
+    public Mat processFrame(FrameCorpus corpus, Buffers buffers) {
+        corpus.frame.copyTo(buffers.work);
+        return buffers.reader.processFrame(buffers.work);
+    }
+}
@@ -0,0 +1,72 @@
+package no.ntnu.bachelor2018.benchmark;
+
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.util.Locale;
+
+import no.ntnu.bachelor2018.filmreader.DirectoryFrameSource;
+import no.ntnu.bachelor2018.filmreader.FrameSource;
+import no.ntnu.bachelor2018.filmreader.MainActivity;
+import no.ntnu.bachelor2018.filmreader.Metrics;
+import no.ntnu.bachelor2018.filmreader.Reader;
+
+/**
+ * Replays a directory of recorded frames through {@link Reader}, the way the camera workers
+ * feed it, and prints the frame rate and the decode counts from {@link Metrics}.
+ * Run with ./gradlew :benchmark:replay -Preplay.args="&lt;directory&gt; [fps] [unboxer library]".
+ * Frames are only sent to the native unboxer if a desktop build of it is given.
+ */
+public class ReplayRunner {
+
+    // Size of raw Y-plane dumps in the directory, the default camera resolution
+    private static final int RAW_WIDTH = 1920;
+    private static final int RAW_HEIGHT = 1080;
+
+    static {
+        nu.pattern.OpenCV.loadShared();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayRunner <directory> [fps] [unboxer library]");
+            System.exit(1);
+        }
+        File directory = new File(args[0]);
+        double fps = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+        final boolean decode = args.length > 2;
+        if (decode) {
+            System.load(new File(args[2]).getAbsolutePath());
+        }
+
+        DirectoryFrameSource source = new DirectoryFrameSource(directory, RAW_WIDTH, RAW_HEIGHT, fps, false);
+        if (source.getFileCount() == 0) {
+            System.err.println("No frames in " + directory);
+            System.exit(1);
+        }
+
+        // No pipeline and no calibration, every frame is processed on the replay thread
+        final Reader reader = new Reader(null, false);
+        Metrics.reset();
+        source.start(new FrameSource.FrameListener() {
+            @Override
+            public void onFrame(Mat frame) {
+                Metrics.count(Metrics.Counter.RECEIVED);
+                // A decoded frame stops decoding like in the app, keep going until all are replayed
+                MainActivity.isActive = decode;
+                reader.processFrame(frame);
+            }
+        });
+        source.awaitEnd();
+
+        Metrics.Snapshot snapshot = Metrics.snapshot();
+        System.out.println(String.format(Locale.US, "%d frames at %.1f fps",
+                source.getFrameCount(), source.getFramesPerSecond()));
+        System.out.println(String.format(Locale.US, "Frame found %d, rejected %d, decode attempts %d, decoded %d",
+                snapshot.get(Metrics.Counter.QUAD_FOUND),
+                snapshot.get(Metrics.Counter.QUALITY_REJECTED),
+                snapshot.get(Metrics.Counter.DECODE_ATTEMPTS),
+                snapshot.get(Metrics.Counter.DECODE_SUCCESSES)));
+        System.out.print(snapshot);
+    }
+}
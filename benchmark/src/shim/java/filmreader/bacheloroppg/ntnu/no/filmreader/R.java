@@ -0,0 +1,12 @@
+package filmreader.bacheloroppg.ntnu.no.filmreader;
+
+/**
+ * Desktop stand-in for the generated resource ids used by the image processing classes.
+ */
+public final class R {
+    public static final class id {
+        public static final int progressTextView = 1;
+        public static final int progressBar = 2;
+        public static final int processingText = 3;
+    }
+}
@@ -0,0 +1,13 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import no.ntnu.bachelor2018.filmreader.PiqlLib.DecodedData;
+
+/**
+ * Desktop stand-in for the file display activity, only referenced by FinalProcessing.
+ */
+public class FileDisplay {
+
+    public static void setData(DecodedData data) {
+        data.close();
+    }
+}
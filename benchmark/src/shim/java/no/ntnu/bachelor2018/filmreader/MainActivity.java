@@ -0,0 +1,12 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import android.content.Context;
+
+/**
+ * Desktop stand-in for the main activity. There is no context, so the image processing
+ * classes run without views, and decoding is only started if ReplayRunner sets isActive.
+ */
+public class MainActivity {
+    public static Context context;              // Always null on the desktop
+    public static Boolean isActive = false;     // False keeps FinalProcessing from calling the native decoder
+}
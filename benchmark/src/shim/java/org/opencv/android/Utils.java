@@ -0,0 +1,15 @@
+package org.opencv.android;
+
+import android.graphics.Bitmap;
+
+import org.opencv.core.Mat;
+
+/**
+ * Desktop stand-in for the OpenCV Android utilities. Bitmaps only exist on a device.
+ */
+public class Utils {
+
+    public static void matToBitmap(Mat mat, Bitmap bitmap) {
+        throw new UnsupportedOperationException("Bitmaps are not available on the desktop");
+    }
+}
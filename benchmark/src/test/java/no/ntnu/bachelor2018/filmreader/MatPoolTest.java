@@ -0,0 +1,190 @@
+package no.ntnu.bachelor2018.filmreader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reference counting, LRU eviction and leak reports of {@link MatPool}.
+ * The pool is shared, every test hands back all buffers it checks out.
+ */
+public class MatPoolTest {
+
+    // Bytes of one 100x100 8 bit buffer
+    private static final long BUFFER_BYTES = 100 * 100;
+
+    static {
+        nu.pattern.OpenCV.loadShared();
+    }
+
+    @Before
+    public void emptyPool() {
+        MatPool.setBudget(64L * 1024 * 1024);
+        MatPool.clear();
+        assertEquals(0, MatPool.getCheckedOutCount());
+    }
+
+    @After
+    public void clearPool() {
+        MatPool.clear();
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        Mat first = MatPool.acquire(100, 100, CvType.CV_8UC1);
+        MatPool.release(first);
+        assertEquals(1, MatPool.getIdleCount());
+
+        Mat second = MatPool.acquire(100, 100, CvType.CV_8UC1);
+        assertSame(first, second);
+        assertEquals(0, MatPool.getIdleCount());
+        MatPool.release(second);
+    }
+
+    @Test
+    public void otherSizeClassIsNotReused() {
+        Mat gray = MatPool.acquire(100, 100, CvType.CV_8UC1);
+        MatPool.release(gray);
+
+        Mat color = MatPool.acquire(100, 100, CvType.CV_8UC3);
+        assertNotSame(gray, color);
+        assertEquals(3, color.channels());
+        MatPool.release(color);
+    }
+
+    @Test
+    public void bufferIsKeptUntilTheLastReference() {
+        Mat mat = MatPool.acquire(100, 100, CvType.CV_8UC1);
+        MatPool.retain(mat);
+
+        MatPool.release(mat);
+        assertEquals(1, MatPool.getCheckedOutCount());
+        assertEquals(0, MatPool.getIdleCount());
+
+        MatPool.release(mat);
+        assertEquals(0, MatPool.getCheckedOutCount());
+        assertEquals(1, MatPool.getIdleCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void retainOfForeignMatFails() {
+        Mat mat = new Mat(10, 10, CvType.CV_8UC1);
+        try {
+            MatPool.retain(mat);
+        } finally {
+            mat.release();
+        }
+    }
+
+    @Test
+    public void foreignMatIsReleased() {
+        Mat mat = new Mat(10, 10, CvType.CV_8UC1);
+        MatPool.release(mat);
+        assertTrue(mat.empty());
+        assertEquals(0, MatPool.getIdleCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        MatPool.setBudget(3 * BUFFER_BYTES);
+        Mat oldest = MatPool.acquire(100, 100, CvType.CV_8UC1);
+        Mat middle = MatPool.acquire(100, 100, CvType.CV_8UC1);
+        Mat newest = MatPool.acquire(100, 100, CvType.CV_8UC1);
+        MatPool.release(oldest);
+        MatPool.release(middle);
+        MatPool.release(newest);
+        assertEquals(3, MatPool.getIdleCount());
+
+        // A buffer of another size class only fits once the oldest idle buffer is gone
+        Mat other = MatPool.acquire(200, 50, CvType.CV_8UC1);
+        assertEquals(2, MatPool.getIdleCount());
+        assertTrue(oldest.empty());
+        assertFalse(middle.empty());
+
+        // The most recently released buffer is reused first
+        Mat reused = MatPool.acquire(100, 100, CvType.CV_8UC1);
+        assertSame(newest, reused);
+        assertEquals(3 * BUFFER_BYTES, MatPool.getBytes());
+
+        MatPool.release(other);
+        MatPool.release(reused);
+    }
+
+    @Test
+    public void bufferOverTheBudgetIsReleased() {
+        MatPool.setBudget(BUFFER_BYTES);
+        Mat first = MatPool.acquire(100, 100, CvType.CV_8UC1);
+        Mat second = MatPool.acquire(100, 100, CvType.CV_8UC1);
+
+        // The other buffer still takes the whole budget
+        MatPool.release(first);
+        assertTrue(first.empty());
+        assertEquals(0, MatPool.getIdleCount());
+
+        MatPool.release(second);
+        assertEquals(1, MatPool.getIdleCount());
+        assertEquals(BUFFER_BYTES, MatPool.getBytes());
+    }
+
+    @Test
+    public void regionsOfNearbySizesShareABuffer() {
+        Mat first = MatPool.acquireRegion(1000, 700, CvType.CV_8UC1);
+        assertEquals(1000, first.width());
+        assertEquals(700, first.height());
+        long data = first.dataAddr();
+        // The buffer is rounded up to 1024x704
+        assertEquals(1024 * 704, MatPool.getBytes());
+        MatPool.release(first);
+        assertEquals(1, MatPool.getIdleCount());
+
+        Mat second = MatPool.acquireRegion(1010, 690, CvType.CV_8UC1);
+        assertEquals(1010, second.width());
+        assertEquals(690, second.height());
+        assertEquals(data, second.dataAddr());
+        assertEquals(0, MatPool.getIdleCount());
+
+        MatPool.retain(second);
+        MatPool.release(second);
+        assertEquals(1, MatPool.getCheckedOutCount());
+        MatPool.release(second);
+        assertEquals(0, MatPool.getCheckedOutCount());
+        assertEquals(1, MatPool.getIdleCount());
+    }
+
+    @Test
+    public void regionOnTheGridIsTheWholeBuffer() {
+        Mat mat = MatPool.acquireRegion(128, 64, CvType.CV_8UC1);
+        assertTrue(mat.isContinuous());
+        assertEquals(128 * 64, MatPool.getBytes());
+        MatPool.release(mat);
+        assertEquals(1, MatPool.getIdleCount());
+    }
+
+    @Test
+    public void checkedOutBufferIsReportedAsLeak() {
+        Mat mat = MatPool.acquire(100, 100, CvType.CV_8UC1);
+        MatPool.retain(mat);
+
+        List<String> leaks = MatPool.findLeaks(0);
+        assertEquals(1, leaks.size());
+        assertTrue(leaks.get(0), leaks.get(0).startsWith("100x100"));
+        assertTrue(leaks.get(0), leaks.get(0).contains("2 references"));
+        // Not checked out for long enough
+        assertEquals(0, MatPool.findLeaks(60 * 1000).size());
+        assertEquals(1, MatPool.logLeaks(0));
+
+        MatPool.release(mat);
+        MatPool.release(mat);
+        assertEquals(0, MatPool.findLeaks(0).size());
+    }
+}
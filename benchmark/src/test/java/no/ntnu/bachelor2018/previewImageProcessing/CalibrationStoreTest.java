@@ -0,0 +1,175 @@
+package no.ntnu.bachelor2018.previewImageProcessing;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Saving, loading and scaling of the calibration profiles in {@link CalibrationStore}.
+ */
+public class CalibrationStoreTest {
+
+    private static final double DELTA = 1e-9;
+
+    static {
+        nu.pattern.OpenCV.loadShared();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void profilesSurviveSaveAndLoad() throws IOException {
+        File file = folder.newFile("calibration.bin");
+        List<CalibrationStore.Profile> profiles = new ArrayList<>();
+        profiles.add(profile("0", 1920, 1080, 1500, 959.5, 539.5));
+        profiles.add(profile("1", 640, 480, 600, 319.5, 239.5));
+        CalibrationStore.save(file, profiles);
+
+        List<CalibrationStore.Profile> loaded = CalibrationStore.load(file);
+        assertEquals(2, loaded.size());
+        for (int i = 0; i < profiles.size(); i++) {
+            CalibrationStore.Profile expected = profiles.get(i);
+            CalibrationStore.Profile actual = loaded.get(i);
+            assertEquals(expected.cameraId, actual.cameraId);
+            assertEquals(expected.width, actual.width);
+            assertEquals(expected.height, actual.height);
+            assertArrayEquals(values(expected.cameraMatrix), values(actual.cameraMatrix), DELTA);
+            assertArrayEquals(values(expected.distCoeffs), values(actual.distCoeffs), DELTA);
+        }
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void missingFileLoadsNothing() {
+        assertEquals(0, CalibrationStore.load(new File(folder.getRoot(), "missing.bin")).size());
+    }
+
+    @Test
+    public void corruptFileIsRejected() throws IOException {
+        File file = saveOne();
+        byte data[] = Files.readAllBytes(file.toPath());
+        // Flip a bit in the camera matrix, the CRC no longer matches
+        data[data.length / 2] ^= 1;
+        Files.write(file.toPath(), data);
+
+        assertEquals(0, CalibrationStore.load(file).size());
+    }
+
+    @Test
+    public void truncatedFileIsRejected() throws IOException {
+        File file = saveOne();
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(file.length() - 1);
+        } finally {
+            output.close();
+        }
+
+        assertEquals(0, CalibrationStore.load(file).size());
+    }
+
+    @Test
+    public void otherVersionIsRejected() throws IOException {
+        File file = saveOne();
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        // Version after the magic number, with a valid CRC so only the version is wrong
+        data.putInt(4, data.getInt(4) + 1);
+        CRC32 crc = new CRC32();
+        crc.update(data.array(), 0, data.capacity() - 8);
+        data.putLong(data.capacity() - 8, crc.getValue());
+        Files.write(file.toPath(), data.array());
+
+        assertEquals(0, CalibrationStore.load(file).size());
+    }
+
+    @Test
+    public void scaledProfileKeepsThePixelCenters() {
+        CalibrationStore.Profile profile = profile("0", 1920, 1080, 1500, 959.5, 539.5);
+        CalibrationStore.Profile scaled = profile.scaled(1280, 720);
+        double camera[] = values(scaled.cameraMatrix);
+
+        assertEquals(1280, scaled.width);
+        assertEquals(720, scaled.height);
+        // Focal lengths scale with the image
+        assertEquals(1000, camera[0], DELTA);
+        assertEquals(1000, camera[4], DELTA);
+        // The center of the image stays the center: (959.5 + 0.5) * 2 / 3 - 0.5
+        assertEquals(639.5, camera[2], DELTA);
+        assertEquals(359.5, camera[5], DELTA);
+        assertEquals(1, camera[8], DELTA);
+        // The distortion does not depend on the resolution
+        assertSame(profile.distCoeffs, scaled.distCoeffs);
+    }
+
+    @Test
+    public void findScalesTheLargestProfileWithTheSameAspect() {
+        List<CalibrationStore.Profile> profiles = new ArrayList<>();
+        profiles.add(profile("0", 1280, 720, 1000, 639.5, 359.5));
+        profiles.add(profile("0", 1920, 1080, 1500, 959.5, 539.5));
+        profiles.add(profile("1", 3840, 2160, 3000, 1919.5, 1079.5));
+
+        CalibrationStore.Profile exact = CalibrationStore.find(profiles, "0", 1280, 720);
+        assertSame(profiles.get(0), exact);
+
+        CalibrationStore.Profile scaled = CalibrationStore.find(profiles, "0", 3840, 2160);
+        assertEquals(3840, scaled.width);
+        assertEquals(3000, values(scaled.cameraMatrix)[0], DELTA);
+
+        assertNull(CalibrationStore.find(profiles, "0", 640, 480));
+        assertNull(CalibrationStore.find(profiles, "2", 1920, 1080));
+    }
+
+    @Test
+    public void removeOnlyRemovesTheCamera() {
+        List<CalibrationStore.Profile> profiles = new ArrayList<>();
+        profiles.add(profile("0", 1280, 720, 1000, 639.5, 359.5));
+        profiles.add(profile("1", 1280, 720, 1000, 639.5, 359.5));
+        profiles.add(profile("0", 1920, 1080, 1500, 959.5, 539.5));
+
+        CalibrationStore.remove(profiles, "0");
+        assertEquals(1, profiles.size());
+        assertEquals("1", profiles.get(0).cameraId);
+    }
+
+    private File saveOne() throws IOException {
+        File file = folder.newFile("calibration.bin");
+        List<CalibrationStore.Profile> profiles = new ArrayList<>();
+        profiles.add(profile("0", 1920, 1080, 1500, 959.5, 539.5));
+        CalibrationStore.save(file, profiles);
+        assertEquals(1, CalibrationStore.load(file).size());
+        return file;
+    }
+
+    private static CalibrationStore.Profile profile(String cameraId, int width, int height,
+                                                    double focal, double cx, double cy) {
+        Mat camera = new Mat(3, 3, CvType.CV_64F);
+        camera.put(0, 0, focal, 0, cx, 0, focal, cy, 0, 0, 1);
+        Mat coeffs = new Mat(1, 5, CvType.CV_64F);
+        coeffs.put(0, 0, 0.1, -0.25, 0.001, 0.002, 0.05);
+        return new CalibrationStore.Profile(cameraId, width, height, camera, coeffs);
+    }
+
+    private static double[] values(Mat mat) {
+        double values[] = new double[(int) mat.total() * mat.channels()];
+        mat.get(0, 0, values);
+        return values;
+    }
+}